@@ -2,12 +2,67 @@
 /*                              // You name here                              */
 /* -------------------------------------------------------------------------- */
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.zip.CRC32;
 
 /* ----------------------------- Enum Data Types ---------------------------- */
 
@@ -32,43 +87,132 @@ enum CommandType {
   PURCHASE,
   REMOVE_HOUSE,
   SEARCH_HOUSE,
+  QUERY, // Search houses by several conditions at once.
   OPTIONS, // Show available options to a customer.
-  NOT_FOUND
+  FLUSH, // Write out everything buffered so far.
+  CACHE, // Show the query cache counters.
+  IMPORT, // Load users and houses from a file in bulk.
+  EXPORT, // Write all users and houses to a file.
+  STATS, // Show the per command metrics.
+  SUBSCRIBE, // Read the change events from a sequence number on.
+  WATCH, // Keep a search of a customer and collect its new matches.
+  UNWATCH, // Drop a kept search.
+  MATCHES, // Show a customer's new matches since the last time.
+  MARKET, // Show the price and age summaries of every address.
+  NOT_FOUND;
+
+  // Commands that change the stored data.
+  public boolean isMutation() {
+    return this == ADD_USER || this == REMOVE_USER || this == ADD_HOUSE || this == REMOVE_HOUSE || this == PURCHASE;
+  }
+}
+
+// Fields of a house that a query can filter or order by.
+enum HouseField {
+  ID,
+  PRICE,
+  AREA,
+  ADDRESS,
+  ROOMS,
+  PARKING,
+  CONSTRUCTION,
+  PURCHASED
+}
+
+// Outcomes of a purchase, PURCHASED is the only successful one.
+enum PurchaseResult {
+  PURCHASED,
+  HOUSE_NOT_FOUND,
+  NOT_ENOUGH_MONEY,
+  BUYER_IS_OWNER,
+  BUYER_OWNS_HOUSE
+}
+
+// Phases a command's time is split into in the slow command log.
+enum Phase {
+  PARSE, // reading the command and its arguments
+  LOOKUP, // finding users and houses through the indexes and the cache
+  FILTER, // scanning and testing the rows no index answers
+  FORMAT, // building the output text
+  WRITE // writing the output, the changes and the journal
+}
+
+// Kinds of changes delivered by the subscribe command.
+enum ChangeKind {
+  USER_ADDED,
+  USER_REMOVED,
+  HOUSE_ADDED,
+  HOUSE_REMOVED,
+  HOUSE_PURCHASED
+}
+
+// Formats of the report and list_users output. TEXT is meant to be read by
+// people, CSV and JSON (one object per line) by other programs.
+enum OutputFormat {
+  TEXT,
+  CSV,
+  JSON;
+
+  // Finds the format with the name, ignoring case, or returns null.
+  static OutputFormat lookup(String name) {
+    for (OutputFormat format : values()) {
+      if (format.name().equalsIgnoreCase(name)) {
+        return format;
+      }
+    }
+    return null;
+  }
 }
 
 /* ---------------------------- Global Variables ---------------------------- */
 class Variables {
-  public static int HOUSE_ID = 0;
+  public static final AtomicInteger HOUSE_ID = new AtomicInteger();
+
+  // First and last names share one dictionary, addresses of users and houses
+  // the other. A few thousand distinct values cover millions of records.
+  public static final StringDictionary NAMES = new StringDictionary();
+  public static final StringDictionary ADDRESSES = new StringDictionary();
 }
 
 /* ------------------------------ Basic Classes ----------------------------- */
 
 // Person class represents a person in the system. A Human being.
+//
+// Names and the address are kept as codes in the shared dictionaries, so equal
+// values are stored once and compare as ints.
 class Person {
-  private String name;
-  private String lastName;
+  private int name;
+  private int lastName;
   private String nationalID;
   private String phoneNumber;
-  private String address;
+  private int address;
 
   public Person(String name, String lastName, String nationalID, String phoneNumber, String address) {
-    this.name = name;
-    this.lastName = lastName;
+    this.name = Variables.NAMES.code(name);
+    this.lastName = Variables.NAMES.code(lastName);
     this.nationalID = nationalID;
     this.phoneNumber = phoneNumber;
-    this.address = address;
+    this.address = Variables.ADDRESSES.code(address);
   }
 
   public String getName() {
+    return Variables.NAMES.value(name);
+  }
+
+  public int getNameCode() {
     return name;
   }
 
   public String getLastName() {
+    return Variables.NAMES.value(lastName);
+  }
+
+  public int getLastNameCode() {
     return lastName;
   }
 
   public String getFullName() {
-    return name + " " + lastName;
+    return getName() + " " + getLastName();
   }
 
   public String getNationalID() {
@@ -80,6 +224,10 @@ class Person {
   }
 
   public String getAddress() {
+    return Variables.ADDRESSES.value(address);
+  }
+
+  public int getAddressCode() {
     return address;
   }
 }
@@ -87,46 +235,42 @@ class Person {
 // User class represents a user in the system. A "Person" with different privileges.
 class User extends Person {
   private Enum<UserType> userType;
-  private ArrayList<House> houses;
-  private boolean hasPurchasedHouse = false;
+  private IntHashMap<House> houses;
+  private volatile boolean hasPurchasedHouse = false;
   private int salary = 0;
+  private long serial; // order of the user in the storage, used as a paging cursor
 
   public User(String name, String lastName, String nationalID, String phoneNumber, String address,
       Enum<UserType> userType) {
     super(name, lastName, nationalID, phoneNumber, address);
     this.userType = userType;
-    this.houses = new ArrayList<House>();
+    this.houses = new IntHashMap<House>(4);
   }
 
   public User(String name, String lastName, String nationalID, String phoneNumber, String address,
       Enum<UserType> userType, int salary) {
     super(name, lastName, nationalID, phoneNumber, address);
     this.userType = userType;
-    this.houses = new ArrayList<House>();
+    this.houses = new IntHashMap<House>(4);
     if (userType == UserType.CUSTOMER) {
       this.salary = salary;
     }
   }
 
-  public void addHouse(House house) {
-    houses.add(house);
+  public synchronized void addHouse(House house) {
+    houses.put(house.getId(), house);
   }
 
-  public void removeHouse(int id) {
-    for (int i = 0; i < houses.size(); i++) {
-      if (houses.get(i).getId() == id) {
-        houses.remove(i);
-      }
-    }
+  public synchronized void removeHouse(int id) {
+    houses.remove(id);
   }
 
-  public House getHouse(int id) {
-    for (House house : houses) {
-      if (house.getId() == id) {
-        return house;
-      }
-    }
-    return null;
+  public synchronized House getHouse(int id) {
+    return houses.get(id);
+  }
+
+  public synchronized boolean hasHouses() {
+    return !houses.isEmpty();
   }
 
   public Enum<UserType> getUserType() {
@@ -141,14 +285,23 @@ class User extends Person {
     return salary;
   }
 
-  public ArrayList<House> getHouses() {
-    return houses == null ? null : houses;
+  // A copy of the user's houses, safe to iterate while other threads make changes.
+  public synchronized Collection<House> getHouses() {
+    return houses == null ? null : new ArrayList<House>(houses.values());
   }
 
   public boolean hasPurchasedHouse() {
     return hasPurchasedHouse;
   }
 
+  public long getSerial() {
+    return serial;
+  }
+
+  public void setSerial(long serial) {
+    this.serial = serial;
+  }
+
   public void setHasPurchasedHouse(boolean hasPurchasedHouse) {
     this.hasPurchasedHouse = hasPurchasedHouse;
   }
@@ -158,21 +311,37 @@ class House {
   private int ID;
   private int price;
   private float area;
-  private String address;
+  private int address; // code in Variables.ADDRESSES
   private int numberOfRooms;
   private boolean hasParking;
-  private boolean purchased = false;
+  private volatile boolean purchased = false;
   private int yearOfConstruction;
-  private User owner;
+  private volatile User owner;
+  private float latitude = Float.NaN; // degrees, NaN when the house has no location
+  private float longitude = Float.NaN;
 
   public House(int price, float area, String address, int numberOfRooms, boolean hasParking,
       int yearOfConstruction, User owner) {
-    this.ID = Variables.HOUSE_ID++;
+    this.ID = Variables.HOUSE_ID.getAndIncrement();
+    this.price = price;
+    this.area = area;
+    this.address = Variables.ADDRESSES.code(address);
+    this.numberOfRooms = numberOfRooms;
+    this.hasParking = hasParking;
+    this.yearOfConstruction = yearOfConstruction;
+    this.owner = owner;
+  }
+
+  // Used to restore a house that already has an ID, e.g. from a snapshot.
+  public House(int id, int price, float area, String address, int numberOfRooms, boolean hasParking,
+      boolean purchased, int yearOfConstruction, User owner) {
+    this.ID = id;
     this.price = price;
     this.area = area;
-    this.address = address;
+    this.address = Variables.ADDRESSES.code(address);
     this.numberOfRooms = numberOfRooms;
     this.hasParking = hasParking;
+    this.purchased = purchased;
     this.yearOfConstruction = yearOfConstruction;
     this.owner = owner;
   }
@@ -190,6 +359,10 @@ class House {
   }
 
   public String getAddress() {
+    return Variables.ADDRESSES.value(address);
+  }
+
+  public int getAddressCode() {
     return address;
   }
 
@@ -209,6 +382,28 @@ class House {
     return owner;
   }
 
+  public boolean hasLocation() {
+    return !Float.isNaN(latitude);
+  }
+
+  public float getLatitude() {
+    return latitude;
+  }
+
+  public float getLongitude() {
+    return longitude;
+  }
+
+  // Places the house at the point, NaN for both leaves it without a location.
+  public void setLocation(float latitude, float longitude) {
+    this.latitude = latitude;
+    this.longitude = longitude;
+  }
+
+  public static boolean isValidLocation(float latitude, float longitude) {
+    return latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180;
+  }
+
   public User changeOwner(User newOwner) {
     this.purchased = true;
     User oldOwner = owner;
@@ -221,7 +416,10 @@ class House {
   }
 
   public int age() {
-    int currentYear = Calendar.getInstance().get(Calendar.YEAR);
+    return age(Calendar.getInstance().get(Calendar.YEAR));
+  }
+
+  public int age(int currentYear) {
     return currentYear - yearOfConstruction;
   }
 
@@ -230,530 +428,7460 @@ class House {
   }
 
   public String toString() {
-    return "ID: " + ID + " | Price: " + price + " | Area: " + area + " | Address: " + address
-        + " | Number of rooms: " + numberOfRooms + " | Has parking: " + hasParking
-        + " | Year of construction: " + yearOfConstruction + " | Owner: " + owner + " | Age: " + age()
-        + " | Purchased: " + purchased;
+    return appendTo(new StringBuilder(160), Calendar.getInstance().get(Calendar.YEAR)).toString();
+  }
+
+  // Appends the same text as toString, for callers that reuse one builder and
+  // look the current year up once for many houses.
+  public StringBuilder appendTo(StringBuilder builder, int currentYear) {
+    User owner = this.owner;
+    builder.append("ID: ").append(ID).append(" | Price: ").append(price).append(" | Area: ").append(area)
+        .append(" | Address: ").append(getAddress());
+    if (hasLocation()) {
+      builder.append(" | Location: ").append(latitude).append(", ").append(longitude);
+    }
+    return builder.append(" | Number of rooms: ").append(numberOfRooms).append(" | Has parking: ").append(hasParking)
+        .append(" | Year of construction: ")
+        .append(yearOfConstruction).append(" | Owner: ").append(owner.getFullName()).append(" (")
+        .append(owner.getUserType()).append(") | Age: ").append(age(currentYear)).append(" | Purchased: ")
+        .append(purchased);
   }
 }
 
-/* --------------------------- Application Classes -------------------------- */
+/* ----------------------------- Data Structures ---------------------------- */
 
-// Storage class is used to store all the data in the system.
-class Storage {
-  private ArrayList<User> users;
+// IntHashMap is a hash map keyed by primitive ints, so lookups never box the key.
+// Entries are also linked in insertion order, which keeps iteration order stable
+// the same way the old ArrayList based collections did.
+class IntHashMap<V> {
+  private static class Entry<V> {
+    final int key;
+    V value;
+    Entry<V> next; // next entry in the same bucket
+    Entry<V> before; // previous entry in insertion order
+    Entry<V> after; // next entry in insertion order
 
-  public Storage() {
-    users = new ArrayList<User>();
+    Entry(int key, V value, Entry<V> next) {
+      this.key = key;
+      this.value = value;
+      this.next = next;
+    }
   }
 
-  public void addUser(User user) {
-    users.add(user);
+  private Entry<V>[] table;
+  private Entry<V> head;
+  private Entry<V> tail;
+  private int size;
+
+  public IntHashMap() {
+    this(16);
   }
 
-  public void removeUser(String id) {
-    for (int i = 0; i < users.size(); i++) {
-      if (users.get(i).getNationalID() == id) {
-        users.remove(i);
-      }
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public IntHashMap(int initialCapacity) {
+    int capacity = 1;
+    while (capacity < initialCapacity) {
+      capacity <<= 1;
     }
+    table = (Entry<V>[]) new Entry[capacity];
   }
 
-  public User getUser(String name, String lastName) {
-    for (User user : users) {
-      if (user.getName().equals(name) && user.getLastName().equals(lastName)) {
-        return user;
+  // Spreads the bits of the key, IDs are sequential and would otherwise cluster.
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  public V get(int key) {
+    for (Entry<V> e = table[hash(key) & (table.length - 1)]; e != null; e = e.next) {
+      if (e.key == key) {
+        return e.value;
       }
     }
     return null;
   }
 
-  public ArrayList<User> getUsers() {
-    return users;
+  public boolean containsKey(int key) {
+    return get(key) != null;
   }
 
-  public List<User> searchUser(String searchKey, String searchValue) {
-    List<User> result = new ArrayList<User>();
+  public V put(int key, V value) {
+    int bucket = hash(key) & (table.length - 1);
+    for (Entry<V> e = table[bucket]; e != null; e = e.next) {
+      if (e.key == key) {
+        V old = e.value;
+        e.value = value;
+        return old;
+      }
+    }
 
-    for (User user : users) {
-      if (searchKey.equals("name")) {
-        if (user.getName().equals(searchValue)) {
-          result.add(user);
-        }
-      } else if (searchKey.equals("last")) {
-        if (user.getLastName().equals(searchValue)) {
-          result.add(user);
-        }
-      } else if (searchKey.equals("ID")) {
-        if (user.getNationalID().equals(searchValue)) {
-          result.add(user);
-        }
-      } else if (searchKey.equals("phone")) {
-        if (user.getPhoneNumber().equals(searchValue)) {
-          result.add(user);
+    Entry<V> entry = new Entry<V>(key, value, table[bucket]);
+    table[bucket] = entry;
+    if (tail == null) {
+      head = entry;
+    } else {
+      tail.after = entry;
+      entry.before = tail;
+    }
+    tail = entry;
+
+    if (++size > table.length * 3 / 4) {
+      resize();
+    }
+    return null;
+  }
+
+  public V remove(int key) {
+    int bucket = hash(key) & (table.length - 1);
+    Entry<V> previous = null;
+    for (Entry<V> e = table[bucket]; e != null; previous = e, e = e.next) {
+      if (e.key == key) {
+        if (previous == null) {
+          table[bucket] = e.next;
+        } else {
+          previous.next = e.next;
         }
-      } else if (searchKey.equals("address")) {
-        if (user.getAddress().equals(searchValue)) {
-          result.add(user);
+        if (e.before == null) {
+          head = e.after;
+        } else {
+          e.before.after = e.after;
         }
-      } else if (searchKey.equals("userType")) {
-        if (user.getUserType().equals(UserType.valueOf(searchValue))) {
-          result.add(user);
+        if (e.after == null) {
+          tail = e.before;
+        } else {
+          e.after.before = e.before;
         }
+        size--;
+        return e.value;
       }
     }
-    return result;
+    return null;
   }
 
-  public List<House> searchHouse(String searchKey, String searchValue) {
-    List<House> result = new ArrayList<House>();
+  public int size() {
+    return size;
+  }
 
-    for (User user : users) {
-      for (House house : user.getHouses()) {
-        if (searchKey.equals("id")) {
-          if (house.getId() == Integer.parseInt(searchValue)) {
-            result.add(house);
-          }
-        } else if (searchKey.equals("price")) {
-          if (house.getPrice() == Integer.parseInt(searchValue)) {
-            result.add(house);
-          }
-        } else if (searchKey.equals("area")) {
-          if (house.getArea() == Float.parseFloat(searchValue)) {
-            result.add(house);
-          }
-        } else if (searchKey.equals("address")) {
-          if (house.getAddress().equals(searchValue)) {
-            result.add(house);
-          }
-        } else if (searchKey.equals("rooms")) {
-          if (house.getNumberOfRooms() == Integer.parseInt(searchValue)) {
-            result.add(house);
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(table, null);
+    head = null;
+    tail = null;
+    size = 0;
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private void resize() {
+    Entry<V>[] newTable = (Entry<V>[]) new Entry[table.length << 1];
+    for (Entry<V> e = head; e != null; e = e.after) {
+      int bucket = hash(e.key) & (newTable.length - 1);
+      e.next = newTable[bucket];
+      newTable[bucket] = e;
+    }
+    table = newTable;
+  }
+
+  // Live view of the values in insertion order.
+  public Collection<V> values() {
+    return new AbstractCollection<V>() {
+      public Iterator<V> iterator() {
+        return new Iterator<V>() {
+          private Entry<V> next = head;
+          private Entry<V> last;
+
+          public boolean hasNext() {
+            return next != null;
           }
-        } else if (searchKey.equals("parking")) {
-          if (house.hasParking() == Boolean.parseBoolean(searchValue)) {
-            result.add(house);
+
+          public V next() {
+            if (next == null) {
+              throw new NoSuchElementException();
+            }
+            last = next;
+            next = next.after;
+            return last.value;
           }
-        } else if (searchKey.equals("construction")) {
-          if (house.getYearOfConstruction() == Integer.parseInt(searchValue)) {
-            result.add(house);
+
+          public void remove() {
+            if (last == null) {
+              throw new IllegalStateException();
+            }
+            IntHashMap.this.remove(last.key);
+            last = null;
           }
-        }
+        };
       }
-    }
-    return result;
+
+      public int size() {
+        return size;
+      }
+    };
   }
 }
 
-// Command class is used to represent a command that the user enters.
-// It contains the command type and the arguments that the user entered.
-class Command {
-  private String command;
-  private CommandType commandType;
-  private String[] arguments;
+// SortedIndex keeps (key, house ID) pairs in key order so range queries only
+// touch the matching entries. Pairs are packed into longs and stored in small
+// sorted blocks, a flat B-tree of sorts, so updates only shift one block.
+class SortedIndex {
+  private static final int BLOCK_SIZE = 512;
 
-  public Command(String command) {
-    this.command = command;
-    try {
-      this.commandType = CommandType.valueOf(command.split(" ")[0].toUpperCase());
-    } catch (Exception e) {
-      this.commandType = CommandType.NOT_FOUND;
-    }
-    // If the command is not found, the arguments are set to null.
-    if (this.commandType == CommandType.NOT_FOUND) {
-      this.arguments = null;
-    } else {
-      this.arguments = command.split(" ");
-      this.arguments[0] = this.commandType.toString();
-    }
+  private static class Block {
+    long[] entries = new long[BLOCK_SIZE];
+    int size;
   }
 
-  public String getCommand() {
-    return command;
-  }
+  private ArrayList<Block> blocks = new ArrayList<Block>();
+  private int size;
 
-  public String[] getArguments() {
-    return arguments;
+  private static long pack(int key, int id) {
+    return ((long) key << 32) | (id & 0xFFFFFFFFL);
   }
 
-  public CommandType getCommandType() {
-    return commandType;
+  // Maps a float to an int with the same ordering, so areas fit in the index.
+  public static int floatKey(float value) {
+    int bits = Float.floatToIntBits(value);
+    return bits ^ ((bits >> 31) & 0x7FFFFFFF);
   }
-}
 
-class CommandDispatcher {
-  private Storage storage;
-
-  public CommandDispatcher(Storage storage) {
-    this.storage = storage;
+  public int size() {
+    return size;
   }
 
-  public void dispatch(Command command) {
-    switch (command.getCommandType()) {
-      case HELP:
-        this.help();
-        break;
-      case ADD_USER:
-        this.addUser(command.getArguments());
-        break;
-      case REMOVE_USER:
-        this.removeUser(command.getArguments());
-        break;
-      case ADD_HOUSE:
-        this.addHouse(command.getArguments());
-        break;
-      case LIST_USERS:
-        this.listUsers();
-        break;
-      case REMOVE_HOUSE:
-        this.removeHouse(command.getArguments());
-        break;
-      case OPTIONS:
-        this.options(command.getArguments());
-        break;
-      case REPORT:
-        this.report();
-        break;
-      case PURCHASE:
-        this.purchase(command.getArguments());
-        break;
-      case SEARCH_HOUSE:
-        this.searchHouse(command.getArguments());
-        break;
-      case SEARCH_USER:
-        this.searchUser(command.getArguments());
-        break;
-      default:
-        System.out.println("\033[31m" + "Command not found" + "\033[0m");
-        break;
+  // Index of the last block whose first entry is not greater than the entry.
+  private int findBlock(long entry) {
+    int low = 0;
+    int high = blocks.size() - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (blocks.get(mid).entries[0] <= entry) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
     }
+    return low;
   }
 
-  private void help() {
-    System.out.println("\033[32m" + "Available commands:" + "\033[0m");
-    System.out.println("\033[32m" + "  help" + "\033[0m");
-    System.out.println(
-        "\033[32m"
-            + "  add user <user> <user type> <name> <last name> <national ID> <phone number> <address> <!salary>"
-            + "\033[0m");
-    System.out.println(
-        "\033[32m" + "  remove user <user> <name> <last name>" + "\033[0m");
-    System.out.println("\033[32m"
-        + "  add house <user> <owner name> <owner last> <price> <area> <address> <number of rooms> <has parking> <year of construction>"
-        + "\033[0m");
-    System.out.println("\033[32m" + "  purchase <user> <owner name> <owner last> <house ID> <buyer name> <buyer last>"
-        + "\033[0m");
-    System.out.println("\033[32m" + "  remove house <user> <owner name> <owner last> <house ID>" + "\033[0m");
-    System.out.println("\033[32m" + "  list users" + "\033[0m");
-    System.out.println("\033[32m" + "  options <name> <last name>" + "\033[0m");
-    System.out.println("\033[32m" + "  search house <user> <search key> <search value>" + "\033[0m");
-    System.out.println("\033[32m"
-        + "     * search keys: <!ID> <!price> <!area> <!address> <!rooms> <!parking> <!construction>" + "\033[0m");
-    System.out.println("\033[32m" + "  search user <user> <search key> <search value>" + "\033[0m");
-    System.out
-        .println("\033[32m" + "     * search keys: <!ID> <!name> <!last> <!phone> <!address> <!userType>" + "\033[0m");
-  }
-
-  // ADD_USER <user> <user type> <name> <last name> <national ID> <phone number> <address> <!salary>
-  private void addUser(String[] arguments) {
-    String user = arguments[1];
+  public void add(int key, int id) {
+    long entry = pack(key, id);
+    if (blocks.isEmpty()) {
+      blocks.add(new Block());
+    }
 
-    // Only the "ROOT" user can add users.
-    if (!user.equals("ROOT")) {
-      System.out.println("\033[31m" + "This user is not allowed to add users" + "\033[0m");
+    int index = findBlock(entry);
+    Block block = blocks.get(index);
+    int position = Arrays.binarySearch(block.entries, 0, block.size, entry);
+    if (position >= 0) {
       return;
     }
+    position = -(position + 1);
 
-    String userType = arguments[2];
-    String name = arguments[3];
-    String lastName = arguments[4];
-    String nationalID = arguments[5];
-    String phoneNumber = arguments[6];
-    String address = arguments[7];
-
-    switch (userType) {
-      case "SELLER":
-        this.storage.addUser(new User(name, lastName, nationalID, phoneNumber, address, UserType.SELLER));
-        break;
-      case "CUSTOMER":
-        int salary = Integer.parseInt(arguments[8]);
-        this.storage.addUser(new User(name, lastName, nationalID, phoneNumber, address, UserType.CUSTOMER, salary));
-        break;
+    // A full block is split in two halves before inserting.
+    if (block.size == BLOCK_SIZE) {
+      int half = BLOCK_SIZE / 2;
+      Block right = new Block();
+      right.size = BLOCK_SIZE - half;
+      System.arraycopy(block.entries, half, right.entries, 0, right.size);
+      block.size = half;
+      blocks.add(index + 1, right);
+      if (position > half) {
+        block = right;
+        position -= half;
+      }
     }
-    System.out.println("\033[32m" + "User added" + "\033[0m");
-  }
 
-  private void removeUser(String[] arguments) {
-    String user = arguments[1];
+    System.arraycopy(block.entries, position, block.entries, position + 1, block.size - position);
+    block.entries[position] = entry;
+    block.size++;
+    size++;
+  }
 
-    // Only the "ROOT" user can remove users.
-    if (!user.equals("ROOT")) {
-      System.out.println("\033[31m" + "This user is not allowed to remove users" + "\033[0m");
-      return;
+  // Adds the first "count" (key, ID) pairs of the arrays at once. The new pairs
+  // are sorted, merged with the present ones and the blocks rebuilt in a single
+  // pass, which costs far less than adding them one by one. Rebuilt blocks are
+  // left a quarter empty, so the next adds do not split them right away.
+  public void addAll(int[] keys, int[] ids, int count) {
+    long[] added = new long[count];
+    for (int i = 0; i < count; i++) {
+      added[i] = pack(keys[i], ids[i]);
     }
+    Arrays.sort(added);
 
-    String name = arguments[2];
-    String lastName = arguments[3];
-
-    User userToRemove = this.storage.getUser(name, lastName);
-    if (userToRemove == null) {
-      System.out.println("\033[31m" + "User not found" + "\033[0m");
-      return;
+    long[] merged = new long[size + count];
+    int length = 0;
+    int next = 0;
+    for (Block block : blocks) {
+      for (int i = 0; i < block.size; i++) {
+        while (next < count && added[next] < block.entries[i]) {
+          length = append(merged, length, added[next++]);
+        }
+        length = append(merged, length, block.entries[i]);
+      }
+    }
+    while (next < count) {
+      length = append(merged, length, added[next++]);
     }
 
-    this.storage.removeUser(userToRemove.getNationalID());
-    System.out.println("\033[32m" + "User removed" + "\033[0m");
+    int fill = BLOCK_SIZE * 3 / 4;
+    blocks = new ArrayList<Block>(length / fill + 1);
+    for (int start = 0; start < length; start += fill) {
+      Block block = new Block();
+      block.size = Math.min(fill, length - start);
+      System.arraycopy(merged, start, block.entries, 0, block.size);
+      blocks.add(block);
+    }
+    size = length;
   }
 
-  // ADD_HOUSE <user> <owner name> <owner last> <price> <area> <address> <number of rooms> <has parking> <year of construction>
-  public void addHouse(String[] arguments) {
-    String user = arguments[1];
+  // Appends the entry unless it repeats the last one, as add ignores duplicates.
+  private static int append(long[] entries, int length, long entry) {
+    if (length > 0 && entries[length - 1] == entry) {
+      return length;
+    }
+    entries[length] = entry;
+    return length + 1;
+  }
 
-    // Only the "ROOT" user can add users.
-    if (!user.equals("ROOT")) {
-      System.out.println("\033[31m" + "This user is not allowed to add houses" + "\033[0m");
+  public void remove(int key, int id) {
+    if (blocks.isEmpty()) {
       return;
     }
 
-    int price = Integer.parseInt(arguments[4]);
-    int area = Integer.parseInt(arguments[5]);
-    String address = arguments[6];
-    int numberOfRooms = Integer.parseInt(arguments[7]);
-    boolean hasParking = Boolean.parseBoolean(arguments[8]);
-    int yearOfConstruction = Integer.parseInt(arguments[9]);
-
-    User owner = this.storage.getUser(arguments[2], arguments[3]);
-    if (owner == null) {
-      System.out.println("\033[31m" + "Owner not found!" + "\033[0m");
+    long entry = pack(key, id);
+    int index = findBlock(entry);
+    Block block = blocks.get(index);
+    int position = Arrays.binarySearch(block.entries, 0, block.size, entry);
+    if (position < 0) {
       return;
     }
 
-    owner.addHouse(new House(price, area, address, numberOfRooms, hasParking, yearOfConstruction, owner));
-    System.out.println("\033[32m" + "House added" + "\033[0m");
+    System.arraycopy(block.entries, position + 1, block.entries, position, block.size - position - 1);
+    block.size--;
+    size--;
+    if (block.size == 0) {
+      blocks.remove(index);
+    }
   }
 
-  private void listUsers() {
-    System.out.println("\033[32m" + "Users:" + "\033[0m");
-    for (User user : storage.getUsers()) {
-      System.out.println("\033[32m" + "  " + user.toString() + "\033[0m");
+  // The number of entries whose key is in [low, high]. Blocks in between are
+  // counted by their size, so this is cheap enough to plan a query with.
+  public int countInRange(int low, int high) {
+    if (blocks.isEmpty() || low > high) {
+      return 0;
+    }
+
+    long from = pack(low, 0);
+    int first = findBlock(from);
+    int start = Arrays.binarySearch(blocks.get(first).entries, 0, blocks.get(first).size, from);
+    start = start < 0 ? -(start + 1) : start;
+
+    long to = ((long) high << 32) | 0xFFFFFFFFL;
+    int last = findBlock(to);
+    int end = Arrays.binarySearch(blocks.get(last).entries, 0, blocks.get(last).size, to);
+    end = end < 0 ? -(end + 1) : end + 1;
+
+    if (first == last) {
+      return Math.max(0, end - start);
     }
+    int count = blocks.get(first).size - start + end;
+    for (int i = first + 1; i < last; i++) {
+      count += blocks.get(i).size;
+    }
+    return count;
   }
 
-  // SEARCH_HOUSE <user> [search key] [search value]
-  // search keys: <!ID> <!price> <!area> <!address> <!number of rooms> <!has parking> <!year of construction>
-  private void searchHouse(String[] arguments) {
-    String user = arguments[1];
+  // Calls the action with the ID of every entry whose key is in [low, high],
+  // ordered by key and then by ID.
+  public void forEachInRange(int low, int high, IntConsumer action) {
+    forEachInRange(low, high, 0, Integer.MAX_VALUE, action);
+  }
 
-    // Only the "ROOT" user can search houses.
-    if (!user.equals("ROOT")) {
-      System.out.println("\033[31m" + "This user is not allowed to search houses" + "\033[0m");
+  // Same as above but skips the first "skip" matches and stops after "limit"
+  // matches. Whole blocks are skipped at once when possible.
+  public void forEachInRange(int low, int high, int skip, int limit, IntConsumer action) {
+    if (blocks.isEmpty() || low > high || limit <= 0) {
       return;
     }
 
-    String searchKey = arguments[2];
-    String searchValue = arguments[3];
+    long from = pack(low, 0);
+    int index = findBlock(from);
+    Block block = blocks.get(index);
+    int position = Arrays.binarySearch(block.entries, 0, block.size, from);
+    if (position < 0) {
+      position = -(position + 1);
+    }
+
+    for (; index < blocks.size(); index++, position = 0) {
+      block = blocks.get(index);
+      int remaining = block.size - position;
+      if (skip >= remaining && remaining > 0 && (int) (block.entries[block.size - 1] >> 32) <= high) {
+        skip -= remaining;
+        continue;
+      }
+
+      for (; position < block.size; position++) {
+        long entry = block.entries[position];
+        if ((int) (entry >> 32) > high) {
+          return;
+        }
+        if (skip > 0) {
+          skip--;
+          continue;
+        }
+        action.accept((int) entry);
+        if (--limit == 0) {
+          return;
+        }
+      }
+    }
+  }
+}
+
+// IntList is a growable list of primitive ints.
+class IntList {
+  private int[] values;
+  private int size;
+
+  public IntList() {
+    this(8);
+  }
+
+  public IntList(int initialCapacity) {
+    values = new int[Math.max(1, initialCapacity)];
+  }
+
+  public void add(int value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+    }
+    values[size++] = value;
+  }
+
+  public int get(int index) {
+    return values[index];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  // Removes the first occurrence of the value, keeping the order of the rest.
+  public boolean removeValue(int value) {
+    for (int i = 0; i < size; i++) {
+      if (values[i] == value) {
+        System.arraycopy(values, i + 1, values, i, size - i - 1);
+        size--;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void addAll(IntList other) {
+    if (size + other.size > values.length) {
+      values = Arrays.copyOf(values, Math.max(size + other.size, values.length * 2));
+    }
+    System.arraycopy(other.values, 0, values, size, other.size);
+    size += other.size;
+  }
+
+  public void sort() {
+    Arrays.sort(values, 0, size);
+  }
+}
+
+// StringDictionary gives every distinct string a small int code, so a value
+// repeated across many records is stored once and compares as an int. Codes
+// are never reused. Lookups do not lock, new strings are added one at a time.
+class StringDictionary {
+  private ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+  private volatile String[] values = new String[64];
+  private int size;
+
+  public int code(String value) {
+    Integer code = codes.get(value);
+    return code != null ? code : add(value);
+  }
+
+  private synchronized int add(String value) {
+    Integer code = codes.get(value);
+    if (code != null) {
+      return code;
+    }
+    String[] current = values;
+    if (size == current.length) {
+      current = Arrays.copyOf(current, size * 2);
+    }
+    current[size] = value;
+    // The array is published before the code, so whoever sees the code sees the value.
+    values = current;
+    codes.put(value, size);
+    return size++;
+  }
+
+  // The code of the value, -1 when it was never added.
+  public int lookup(String value) {
+    Integer code = codes.get(value);
+    return code == null ? -1 : code;
+  }
+
+  public String value(int code) {
+    return values[code];
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+}
+
+// AddressIndex keeps the IDs of the houses at every address and finds the
+// addresses that match a pattern with "*" wildcards, like "Teh*", "*ran" or
+// "*hr*". The distinct addresses are kept sorted, so a pattern with a literal
+// start only visits the addresses with that prefix. Every address is also
+// listed under each of its three character grams, so a pattern that starts
+// with a wildcard only checks the addresses sharing the rarest gram of its
+// longest literal part.
+class AddressIndex {
+  private SortedIndex houses = new SortedIndex(); // (address code, house ID)
+  private int[] counts = new int[64]; // houses per address code
+
+  private TreeMap<String, Integer> addresses = new TreeMap<String, Integer>();
+  private HashMap<String, IntList> addressesByGram = new HashMap<String, IntList>();
+
+  public void add(int address, int id) {
+    houses.add(address, id);
+    countHouse(address);
+  }
+
+  // Adds the first "count" (address, ID) pairs of the arrays at once.
+  public void addAll(int[] addresses, int[] ids, int count) {
+    houses.addAll(addresses, ids, count);
+    for (int i = 0; i < count; i++) {
+      countHouse(addresses[i]);
+    }
+  }
+
+  // Counts one more house at the address, listing the address with its first house.
+  private void countHouse(int address) {
+    if (address >= counts.length) {
+      counts = Arrays.copyOf(counts, Math.max(address + 1, counts.length * 2));
+    }
+    if (counts[address]++ > 0) {
+      return;
+    }
+
+    String value = Variables.ADDRESSES.value(address);
+    addresses.put(value, address);
+    for (int i = 0; i + 3 <= value.length(); i++) {
+      String gram = value.substring(i, i + 3);
+      IntList bucket = addressesByGram.get(gram);
+      if (bucket == null) {
+        bucket = new IntList(4);
+        addressesByGram.put(gram, bucket);
+      }
+      // A gram repeated in the same address is listed once.
+      if (bucket.isEmpty() || bucket.get(bucket.size() - 1) != address) {
+        bucket.add(address);
+      }
+    }
+  }
+
+  public void remove(int address, int id) {
+    houses.remove(address, id);
+    if (address >= counts.length || counts[address] == 0 || --counts[address] > 0) {
+      return;
+    }
+
+    String value = Variables.ADDRESSES.value(address);
+    addresses.remove(value);
+    for (int i = 0; i + 3 <= value.length(); i++) {
+      String gram = value.substring(i, i + 3);
+      IntList bucket = addressesByGram.get(gram);
+      if (bucket != null) {
+        bucket.removeValue(address);
+        if (bucket.isEmpty()) {
+          addressesByGram.remove(gram);
+        }
+      }
+    }
+  }
+
+  // The number of houses at the address.
+  public int count(int address) {
+    return address >= 0 && address < counts.length ? counts[address] : 0;
+  }
+
+  // Passes the IDs of the houses at the address to the action, in ID order.
+  public void forEachHouse(int address, IntConsumer action) {
+    houses.forEachInRange(address, address, action);
+  }
+
+  // The codes of the addresses with houses that match the pattern.
+  public IntList match(String pattern) {
+    IntList result = new IntList();
+    int star = pattern.indexOf('*');
+    if (star < 0) {
+      int code = Variables.ADDRESSES.lookup(pattern);
+      if (code >= 0 && code < counts.length && counts[code] > 0) {
+        result.add(code);
+      }
+      return result;
+    }
+
+    String prefix = pattern.substring(0, star);
+    if (!prefix.isEmpty()) {
+      for (Map.Entry<String, Integer> entry : addresses.tailMap(prefix).entrySet()) {
+        if (!entry.getKey().startsWith(prefix)) {
+          break;
+        }
+        if (matches(pattern, entry.getKey())) {
+          result.add(entry.getValue());
+        }
+      }
+      return result;
+    }
+
+    String literal = "";
+    for (String part : pattern.split("\\*")) {
+      if (part.length() > literal.length()) {
+        literal = part;
+      }
+    }
+    if (literal.length() < 3) {
+      for (Map.Entry<String, Integer> entry : addresses.entrySet()) {
+        if (matches(pattern, entry.getKey())) {
+          result.add(entry.getValue());
+        }
+      }
+      return result;
+    }
+
+    IntList candidates = null;
+    for (int i = 0; i + 3 <= literal.length(); i++) {
+      IntList bucket = addressesByGram.get(literal.substring(i, i + 3));
+      if (bucket == null) {
+        return result;
+      }
+      if (candidates == null || bucket.size() < candidates.size()) {
+        candidates = bucket;
+      }
+    }
+    for (int i = 0; i < candidates.size(); i++) {
+      if (matches(pattern, Variables.ADDRESSES.value(candidates.get(i)))) {
+        result.add(candidates.get(i));
+      }
+    }
+    return result;
+  }
+
+  // Whether the value matches the pattern, where "*" stands for any text.
+  public static boolean matches(String pattern, String value) {
+    int star = pattern.indexOf('*');
+    if (star < 0) {
+      return pattern.equals(value);
+    }
+    String[] parts = pattern.split("\\*", -1);
+    String last = parts[parts.length - 1];
+    if (!value.startsWith(parts[0]) || value.length() < parts[0].length() + last.length()
+        || !value.endsWith(last)) {
+      return false;
+    }
+    int position = parts[0].length();
+    int end = value.length() - last.length();
+    for (int i = 1; i < parts.length - 1; i++) {
+      int found = value.indexOf(parts[i], position);
+      if (found < 0 || found + parts[i].length() > end) {
+        return false;
+      }
+      position = found + parts[i].length();
+    }
+    return true;
+  }
+}
+
+// GeoGrid keeps the houses with a location in cells of a fixed grid of
+// latitude and longitude, 0.01 degrees (about 1 km) on a side, kept in a hash
+// map by cell so only the cells with houses take memory. A cell holds the IDs
+// and coordinates of its houses side by side, so distances are checked without
+// reading the houses. A search within a radius only visits the cells of the
+// bounding box of the circle, which holds a few cells for a radius of a few
+// kilometres however many houses there are elsewhere. When the box holds more
+// cells than have houses, as for a radius of thousands of kilometres, the
+// occupied cells are visited instead.
+//
+// Distances are great circle distances in kilometres on a spherical earth.
+class GeoGrid {
+  public static final double EARTH_RADIUS = 6371.0088;
+  public static final double MAX_DISTANCE = Math.PI * EARTH_RADIUS; // half way around
+  private static final int CELLS_PER_DEGREE = 100;
+  private static final int ROWS = 180 * CELLS_PER_DEGREE + 1;
+  private static final int COLUMNS = 360 * CELLS_PER_DEGREE;
+
+  // Receives the houses within the radius.
+  interface Visitor {
+    void visit(int id, double distance);
+  }
+
+  // The houses of one cell in no particular order, removing one moves the
+  // last into its place.
+  private static class Cell {
+    int size;
+    int[] ids = new int[4];
+    float[] latitudes = new float[4];
+    float[] longitudes = new float[4];
+  }
+
+  private IntHashMap<Cell> cells = new IntHashMap<Cell>(1024);
+
+  private static int row(double latitude) {
+    return Math.max(0, Math.min(ROWS - 1, (int) Math.floor((latitude + 90) * CELLS_PER_DEGREE)));
+  }
+
+  private static int column(double longitude) {
+    return Math.floorMod((int) Math.floor((longitude + 180) * CELLS_PER_DEGREE), COLUMNS);
+  }
+
+  public void add(int id, float latitude, float longitude) {
+    int key = row(latitude) * COLUMNS + column(longitude);
+    Cell cell = cells.get(key);
+    if (cell == null) {
+      cell = new Cell();
+      cells.put(key, cell);
+    }
+    if (cell.size == cell.ids.length) {
+      cell.ids = Arrays.copyOf(cell.ids, cell.size * 2);
+      cell.latitudes = Arrays.copyOf(cell.latitudes, cell.size * 2);
+      cell.longitudes = Arrays.copyOf(cell.longitudes, cell.size * 2);
+    }
+    cell.ids[cell.size] = id;
+    cell.latitudes[cell.size] = latitude;
+    cell.longitudes[cell.size++] = longitude;
+  }
+
+  public void remove(int id, float latitude, float longitude) {
+    int key = row(latitude) * COLUMNS + column(longitude);
+    Cell cell = cells.get(key);
+    if (cell == null) {
+      return;
+    }
+    for (int i = 0; i < cell.size; i++) {
+      if (cell.ids[i] == id) {
+        int last = --cell.size;
+        cell.ids[i] = cell.ids[last];
+        cell.latitudes[i] = cell.latitudes[last];
+        cell.longitudes[i] = cell.longitudes[last];
+        break;
+      }
+    }
+    if (cell.size == 0) {
+      cells.remove(key);
+    }
+  }
+
+  // Passes every house at most radius kilometres from the point to the
+  // visitor, with its distance.
+  public void forEachNear(double latitude, double longitude, double radius, Visitor visitor) {
+    double angle = radius / EARTH_RADIUS;
+    double band = Math.toDegrees(angle);
+    double south = latitude - band;
+    double north = latitude + band;
+
+    // The widest longitude a point within the angle can differ by, unless the
+    // circle holds a pole and with it every longitude.
+    int firstColumn = 0;
+    int lastColumn = COLUMNS - 1;
+    double sine = Math.sin(Math.min(angle, Math.PI / 2)) / Math.cos(Math.toRadians(latitude));
+    if (south > -90 && north < 90 && angle < Math.PI / 2 && sine < 1) {
+      double span = Math.toDegrees(Math.asin(sine));
+      firstColumn = (int) Math.floor((longitude - span + 180) * CELLS_PER_DEGREE);
+      lastColumn = (int) Math.floor((longitude + span + 180) * CELLS_PER_DEGREE);
+      if (lastColumn - firstColumn + 1 >= COLUMNS) {
+        firstColumn = 0;
+        lastColumn = COLUMNS - 1;
+      }
+    }
+    int firstRow = row(south);
+    int lastRow = row(north);
+
+    if ((long) (lastRow - firstRow + 1) * (lastColumn - firstColumn + 1) > cells.size()) {
+      for (Cell cell : cells.values()) {
+        visit(cell, latitude, longitude, radius, band, visitor);
+      }
+      return;
+    }
+    for (int row = firstRow; row <= lastRow; row++) {
+      for (int column = firstColumn; column <= lastColumn; column++) {
+        Cell cell = cells.get(row * COLUMNS + Math.floorMod(column, COLUMNS));
+        if (cell != null) {
+          visit(cell, latitude, longitude, radius, band, visitor);
+        }
+      }
+    }
+  }
+
+  // The latitude alone rules out most of the houses too far away, before
+  // any trigonometry.
+  private static void visit(Cell cell, double latitude, double longitude, double radius, double band,
+      Visitor visitor) {
+    for (int i = 0; i < cell.size; i++) {
+      if (Math.abs(cell.latitudes[i] - latitude) <= band) {
+        double distance = distance(latitude, longitude, cell.latitudes[i], cell.longitudes[i]);
+        if (distance <= radius) {
+          visitor.visit(cell.ids[i], distance);
+        }
+      }
+    }
+  }
+
+  // The haversine distance between the two points in kilometres.
+  public static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+    double latitudes = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+    double longitudes = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+    double a = latitudes * latitudes
+        + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * longitudes * longitudes;
+    return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+  // A house's place in a nearest first order packed with its ID, for TopK.
+  // The bits of a positive float sort as the float does.
+  public static long sortKey(double distance, int id) {
+    return ((long) Float.floatToIntBits((float) distance) << 32) | (id & 0xFFFFFFFFL);
+  }
+
+  public static long sortKey(double latitude, double longitude, House house) {
+    return sortKey(distance(latitude, longitude, house.getLatitude(), house.getLongitude()), house.getId());
+  }
+}
+
+// TopK keeps the k smallest of the longs added to it in a bounded max-heap, so
+// picking the first k of n values costs O(n log k) and O(k) memory instead of
+// sorting all n.
+class TopK {
+  private long[] heap = new long[16];
+  private int size;
+  private int k;
+
+  public TopK(int k) {
+    this.k = k;
+  }
+
+  public void add(long value) {
+    if (size < k) {
+      if (size == heap.length) {
+        heap = Arrays.copyOf(heap, (int) Math.min((long) size * 2, Integer.MAX_VALUE - 8));
+      }
+      heap[size] = value;
+      siftUp(size++);
+    } else if (k > 0 && value < heap[0]) {
+      heap[0] = value;
+      siftDown(0);
+    }
+  }
+
+  private void siftUp(int index) {
+    long value = heap[index];
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      if (heap[parent] >= value) {
+        break;
+      }
+      heap[index] = heap[parent];
+      index = parent;
+    }
+    heap[index] = value;
+  }
+
+  private void siftDown(int index) {
+    long value = heap[index];
+    while (true) {
+      int child = 2 * index + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && heap[child + 1] > heap[child]) {
+        child++;
+      }
+      if (heap[child] <= value) {
+        break;
+      }
+      heap[index] = heap[child];
+      index = child;
+    }
+    heap[index] = value;
+  }
+
+  // The kept values in ascending order.
+  public long[] sorted() {
+    long[] values = Arrays.copyOf(heap, size);
+    Arrays.sort(values);
+    return values;
+  }
+}
+
+/* --------------------------- Application Classes -------------------------- */
+
+// ParallelScan splits a scan over [0, size) into chunks that run side by side
+// on a ForkJoinPool and hands the chunk results back in chunk order, so the
+// merged result is the same as that of a sequential scan. Scans smaller than
+// the threshold run on the calling thread, splitting them costs more than it
+// saves.
+//
+// The chunks do not inherit the caller's locks. The storage scans hold the
+// storage read lock around the whole scan, so their chunks read data that does
+// not change under them, and such chunks must not take the storage lock again:
+// a waiting writer would block them while the caller waits for them. Other
+// callers, like the report formatting, run chunks that take the locks they
+// need themselves, so each row is consistent but the rows are not one
+// snapshot of the storage.
+class ParallelScan {
+  // One chunk of a scan, the rows [start, end).
+  interface Chunk<T> {
+    T run(int start, int end);
+  }
+
+  private static volatile ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+  private static volatile int threshold = 16384;
+
+  // Sets the number of threads a scan uses, 1 keeps every scan sequential, and
+  // the size below which a scan is not split. Meant to be called at startup.
+  // Scans that already read the previous pool may still submit to it, so it
+  // is not shut down; its threads end on their own once they are idle.
+  public static void configure(int parallelism, int threshold) {
+    pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    ParallelScan.threshold = threshold;
+  }
+
+  public static <T> List<T> map(int size, final Chunk<T> chunk) {
+    ForkJoinPool pool = ParallelScan.pool;
+    List<T> results = new ArrayList<T>();
+    if (pool == null || size < threshold) {
+      results.add(chunk.run(0, size));
+      return results;
+    }
+
+    // A few chunks per thread even out chunks that take longer than others.
+    int count = pool.getParallelism() * 4;
+    return invoke(pool, size, (size + count - 1) / count, chunk);
+  }
+
+  // Runs chunk.run(i, i + 1) for every i in [0, count) side by side however
+  // small count is, for items that are each a lot of work, like the shards of
+  // a ShardedStorage.
+  public static <T> List<T> each(int count, final Chunk<T> chunk) {
+    ForkJoinPool pool = ParallelScan.pool;
+    if (pool == null || count < 2) {
+      List<T> results = new ArrayList<T>(count);
+      for (int i = 0; i < count; i++) {
+        results.add(chunk.run(i, i + 1));
+      }
+      return results;
+    }
+    return invoke(pool, count, 1, chunk);
+  }
+
+  private static <T> List<T> invoke(ForkJoinPool pool, int size, int step, final Chunk<T> chunk) {
+    List<T> results = new ArrayList<T>();
+    List<Callable<T>> tasks = new ArrayList<Callable<T>>((size + step - 1) / step);
+    for (int start = 0; start < size; start += step) {
+      final int from = start;
+      final int to = Math.min(size, start + step);
+      tasks.add(new Callable<T>() {
+        public T call() {
+          return chunk.run(from, to);
+        }
+      });
+    }
+
+    try {
+      for (Future<T> future : pool.invokeAll(tasks)) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while scanning", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+    return results;
+  }
+
+  // The rows in [0, size) that pass the predicate, in ascending order.
+  public static IntList filter(int size, final IntPredicate predicate) {
+    CommandTrace.enter(Phase.FILTER);
+    List<IntList> parts = map(size, new Chunk<IntList>() {
+      public IntList run(int start, int end) {
+        IntList rows = new IntList();
+        for (int row = start; row < end; row++) {
+          if (predicate.test(row)) {
+            rows.add(row);
+          }
+        }
+        return rows;
+      }
+    });
+    if (parts.size() == 1) {
+      return parts.get(0);
+    }
+
+    int total = 0;
+    for (IntList part : parts) {
+      total += part.size();
+    }
+    IntList rows = new IntList(total);
+    for (IntList part : parts) {
+      rows.addAll(part);
+    }
+    return rows;
+  }
+}
+
+// QueryCache keeps the results of recent searches, options and queries, the
+// least recently used entry making room for a new one. Every entry records the
+// versions of the data it was computed from, houses and users, and a mutation
+// moves the version of the data it changed on. An entry computed from an older
+// version is dropped when it is next looked up, so a house change leaves
+// cached user searches alone and the other way round.
+//
+// A version is read before the result is computed and moved only after the
+// change is applied, so an entry that raced with a change is stamped with the
+// old version and never served.
+class QueryCache {
+  public static final int HOUSES = 1;
+  public static final int USERS = 2;
+
+  // Larger results are computed every time, they would crowd out everything else.
+  private static final int MAX_RESULT_SIZE = 10_000;
+
+  // Computes the result on a miss.
+  interface Lookup<T> {
+    T compute();
+  }
+
+  private static class Entry {
+    Object value;
+    int dependencies;
+    long houseVersion;
+    long userVersion;
+  }
+
+  private int capacity;
+  private LinkedHashMap<String, Entry> entries;
+  private AtomicLong houseVersion = new AtomicLong();
+  private AtomicLong userVersion = new AtomicLong();
+
+  private LongAdder hits = new LongAdder();
+  private LongAdder misses = new LongAdder();
+  private LongAdder evictions = new LongAdder();
+  private LongAdder invalidations = new LongAdder();
+
+  public QueryCache(final int capacity) {
+    this.capacity = capacity;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() > capacity) {
+          evictions.increment();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  // Called after a mutation of the given data has been applied.
+  public void changed(int dependencies) {
+    if ((dependencies & HOUSES) != 0) {
+      houseVersion.incrementAndGet();
+    }
+    if ((dependencies & USERS) != 0) {
+      userVersion.incrementAndGet();
+    }
+  }
+
+  // The cached result for the key, or the one the lookup computes. The result
+  // is shared between callers and must not be changed.
+  @SuppressWarnings("unchecked")
+  public <T> T get(String key, int dependencies, Lookup<T> lookup) {
+    long houses = houseVersion.get();
+    long users = userVersion.get();
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (((entry.dependencies & HOUSES) == 0 || entry.houseVersion == houses)
+            && ((entry.dependencies & USERS) == 0 || entry.userVersion == users)) {
+          hits.increment();
+          return (T) entry.value;
+        }
+        entries.remove(key);
+        invalidations.increment();
+      }
+    }
+    misses.increment();
+
+    T value = lookup.compute();
+    if (!(value instanceof Collection) || ((Collection<?>) value).size() <= MAX_RESULT_SIZE) {
+      Entry entry = new Entry();
+      entry.value = value;
+      entry.dependencies = dependencies;
+      entry.houseVersion = houses;
+      entry.userVersion = users;
+      synchronized (entries) {
+        entries.put(key, entry);
+      }
+    }
+    return value;
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public long getInvalidations() {
+    return invalidations.sum();
+  }
+}
+
+// CommandMetrics counts the dispatched commands of every type with their
+// latency, the number of rows they returned and the bytes they allocated.
+// Recording only adds to atomic counters in arrays fixed up front, so it never
+// locks and is cheap enough to stay on in production.
+class CommandMetrics {
+  private static final CommandType[] TYPES = CommandType.values();
+
+  // Histogram counts values in log-linear buckets, the way HdrHistogram does.
+  // Values below 64 get a bucket each, larger ones 32 buckets per power of
+  // two, so a percentile is never more than about 3% above the true value.
+  static class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+    private LongAdder count = new LongAdder();
+    private LongAdder sum = new LongAdder();
+    private AtomicLong max = new AtomicLong();
+
+    private static int bucket(long value) {
+      if (value < 2 * SUB_BUCKETS) {
+        return (int) value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+      return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // The highest value that falls in the bucket.
+    private static long highest(int bucket) {
+      if (bucket < 2 * SUB_BUCKETS) {
+        return bucket;
+      }
+      int shift = bucket / SUB_BUCKETS - 1;
+      return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift) - 1;
+    }
+
+    public void record(long value) {
+      value = Math.max(0, value);
+      buckets.incrementAndGet(bucket(value));
+      count.increment();
+      sum.add(value);
+      long current = max.get();
+      while (value > current && !max.compareAndSet(current, value)) {
+        current = max.get();
+      }
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public double getMean() {
+      long n = count.sum();
+      return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    // The value that the given fraction of the recorded values do not exceed,
+    // rounded up to the end of its bucket.
+    public long percentile(double fraction) {
+      long total = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        total += buckets.get(i);
+      }
+      long rank = Math.max(1, (long) Math.ceil(fraction * total));
+      long seen = 0;
+      for (int i = 0; i < buckets.length() && total > 0; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return Math.min(highest(i), max.get());
+        }
+      }
+      return max.get();
+    }
+  }
+
+  private static class Entry {
+    Histogram latency = new Histogram(); // nanoseconds
+    Histogram rows = new Histogram(); // rows returned, by the commands that return any
+    LongAdder allocated = new LongAdder(); // bytes, by the commands where the runtime tells
+    LongAdder measured = new LongAdder(); // commands counted in allocated
+  }
+
+  private Entry[] entries = new Entry[TYPES.length];
+  private long started = System.nanoTime();
+  private com.sun.management.ThreadMXBean allocations;
+
+  public CommandMetrics() {
+    for (int i = 0; i < entries.length; i++) {
+      entries[i] = new Entry();
+    }
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+      allocations = (com.sun.management.ThreadMXBean) threads;
+    }
+  }
+
+  // The bytes the current thread allocated so far, -1 when the runtime can not
+  // tell, e.g. on a virtual thread.
+  public long allocatedBytes() {
+    return allocations == null ? -1 : allocations.getCurrentThreadAllocatedBytes();
+  }
+
+  // Records a dispatched command. rows is -1 for a command that returns no rows
+  // and allocated is -1 when it is not known.
+  public void record(CommandType type, long nanos, int rows, long allocated) {
+    Entry entry = entries[type.ordinal()];
+    entry.latency.record(nanos);
+    if (rows >= 0) {
+      entry.rows.record(rows);
+    }
+    if (allocated >= 0) {
+      entry.allocated.add(allocated);
+      entry.measured.increment();
+    }
+  }
+
+  // The stats as the lines of a table, with a row per command type seen so far.
+  public List<String> format() {
+    double seconds = (System.nanoTime() - started) / 1e9;
+    List<String> lines = new ArrayList<String>();
+    lines.add(String.format("Command stats over %.1f s:", seconds));
+    lines.add(String.format("  %-14s %10s %10s %10s %10s %10s %10s %10s %10s %10s %12s", "command", "count",
+        "per s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "avg rows", "max rows", "avg bytes"));
+    for (CommandType type : TYPES) {
+      Entry entry = entries[type.ordinal()];
+      long count = entry.latency.getCount();
+      if (count == 0) {
+        continue;
+      }
+      long measured = entry.measured.sum();
+      boolean rows = entry.rows.getCount() > 0;
+      lines.add(String.format("  %-14s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f %10s %10s %12s",
+          type.name().toLowerCase(), count, count / seconds, entry.latency.percentile(0.5) / 1e3,
+          entry.latency.percentile(0.9) / 1e3, entry.latency.percentile(0.99) / 1e3,
+          entry.latency.percentile(0.999) / 1e3, entry.latency.getMax() / 1e3,
+          rows ? String.format("%.1f", entry.rows.getMean()) : "-", rows ? String.valueOf(entry.rows.getMax()) : "-",
+          measured == 0 ? "-" : String.valueOf(entry.allocated.sum() / measured)));
+    }
+    return lines;
+  }
+
+  // Appends the stats, headed by the time, to the file.
+  public void dump(File file) throws IOException {
+    try (PrintWriter writer = new PrintWriter(new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)))) {
+      writer.println(Instant.now());
+      for (String line : format()) {
+        writer.println(line);
+      }
+      writer.println();
+    }
+  }
+
+  // Dumps the stats to the file every intervalMillis from a daemon thread.
+  public void dumpEvery(final File file, final long intervalMillis) {
+    Thread dumper = new Thread(new Runnable() {
+      public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            Thread.sleep(intervalMillis);
+            dump(file);
+          } catch (InterruptedException e) {
+            return;
+          } catch (IOException e) {
+            System.err.println("Could not write the stats: " + e.getMessage());
+          }
+        }
+      }
+    }, "stats-dump");
+    dumper.setDaemon(true);
+    dumper.start();
+  }
+}
+
+// CommandTrace splits the time of the command running on a thread into its
+// phases. The dispatcher begins and ends the trace, and the code in between
+// moves it on with CommandTrace.enter, which does nothing on a thread that is
+// not tracing, like a scan worker or a dispatcher without a slow command log.
+class CommandTrace {
+  private static final ThreadLocal<CommandTrace> CURRENT = new ThreadLocal<CommandTrace>();
+
+  private long[] nanos = new long[Phase.values().length];
+  private Phase phase;
+  private long since;
+
+  // Starts tracing the current thread at the given System.nanoTime, in the
+  // PARSE phase which already took parseNanos.
+  public void begin(long parseNanos, long now) {
+    Arrays.fill(nanos, 0);
+    nanos[Phase.PARSE.ordinal()] = parseNanos;
+    phase = Phase.PARSE;
+    since = now;
+    CURRENT.set(this);
+  }
+
+  public void end(long now) {
+    move(null, now);
+    CURRENT.remove();
+  }
+
+  public static void enter(Phase phase) {
+    CommandTrace trace = CURRENT.get();
+    if (trace != null) {
+      trace.move(phase, System.nanoTime());
+    }
+  }
+
+  private void move(Phase next, long now) {
+    if (phase != null) {
+      nanos[phase.ordinal()] += now - since;
+    }
+    phase = next;
+    since = now;
+  }
+
+  public long getNanos(Phase phase) {
+    return nanos[phase.ordinal()];
+  }
+}
+
+// SlowCommandLog writes every command that took at least the threshold to a
+// log file, with its time per phase and the rows it returned. A command only
+// puts its entry in a ring buffer and a writer thread takes it from there, so
+// a slow disk never holds a command up. When the buffer is full the entry is
+// dropped and counted instead. The file is rotated once it reaches MAX_BYTES,
+// keeping the last FILES ones as <file>.1 to <file>.<FILES>.
+class SlowCommandLog implements Closeable {
+  private static final int CAPACITY = 1024; // a power of two
+  private static final long MAX_BYTES = 16L << 20;
+  private static final int FILES = 4;
+  private static final long IDLE_MILLIS = 5;
+
+  private File path;
+  private long thresholdNanos;
+  private OutputStream stream;
+  private long size;
+
+  // Producers claim a sequence, fill its slot and then publish it. The writer
+  // takes the slots in sequence order, once each is published.
+  private String[] entries = new String[CAPACITY];
+  private AtomicLongArray published = new AtomicLongArray(CAPACITY); // sequence + 1 of the entry in each slot
+  private AtomicLong claimed = new AtomicLong();
+  private volatile long consumed;
+  private LongAdder dropped = new LongAdder();
+
+  private volatile boolean closed;
+  private Thread writer;
+
+  public SlowCommandLog(File path, long thresholdMillis) throws IOException {
+    this.path = path;
+    this.thresholdNanos = thresholdMillis * 1_000_000L;
+    open();
+
+    this.writer = new Thread(new Runnable() {
+      public void run() {
+        while (true) {
+          try {
+            if (!drain()) {
+              if (closed) {
+                return;
+              }
+              Thread.sleep(IDLE_MILLIS);
+            }
+          } catch (InterruptedException e) {
+            return;
+          } catch (IOException e) {
+            System.err.println("Could not write the slow command log: " + e.getMessage());
+            closed = true;
+            return;
+          }
+        }
+      }
+    }, "slow-log");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  private void open() throws IOException {
+    stream = new BufferedOutputStream(new FileOutputStream(path, true), 1 << 16);
+    size = path.length();
+  }
+
+  // Logs the command when it took at least the threshold. Never blocks.
+  public void record(Command command, long nanos, int rows, CommandTrace trace) {
+    if (nanos < thresholdNanos || closed) {
+      return;
+    }
+    StringBuilder entry = new StringBuilder(256);
+    entry.append(Instant.now()).append(' ').append(String.format("%.3f", nanos / 1e6)).append(" ms rows=")
+        .append(rows < 0 ? "-" : String.valueOf(rows));
+    for (Phase phase : Phase.values()) {
+      entry.append(' ').append(phase.name().toLowerCase()).append('=')
+          .append(String.format("%.3f", trace.getNanos(phase) / 1e6));
+    }
+    offer(entry.append(" | ").append(command.getCommand()).toString());
+  }
+
+  private void offer(String entry) {
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (sequence - consumed >= CAPACITY) {
+        dropped.increment();
+        return;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+    int slot = (int) sequence & (CAPACITY - 1);
+    entries[slot] = entry;
+    published.set(slot, sequence + 1);
+  }
+
+  // Writes the published entries in order. Returns whether there were any.
+  private boolean drain() throws IOException {
+    boolean wrote = false;
+    long lost = dropped.sumThenReset();
+    if (lost > 0) {
+      write(Instant.now() + " dropped " + lost + " entries, the buffer was full");
+      wrote = true;
+    }
+    while (true) {
+      long sequence = consumed;
+      int slot = (int) sequence & (CAPACITY - 1);
+      if (published.get(slot) != sequence + 1) {
+        break;
+      }
+      String entry = entries[slot];
+      entries[slot] = null;
+      consumed = sequence + 1;
+      write(entry);
+      wrote = true;
+    }
+    if (wrote) {
+      stream.flush();
+    }
+    return wrote;
+  }
+
+  private void write(String entry) throws IOException {
+    byte[] bytes = (entry + "\n").getBytes(StandardCharsets.UTF_8);
+    if (size > 0 && size + bytes.length > MAX_BYTES) {
+      rotate();
+    }
+    stream.write(bytes);
+    size += bytes.length;
+  }
+
+  private void rotate() throws IOException {
+    stream.close();
+    for (int i = FILES - 1; i >= 1; i--) {
+      File older = new File(path.getPath() + "." + i);
+      if (older.exists()) {
+        Files.move(older.toPath(), new File(path.getPath() + "." + (i + 1)).toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    Files.move(path.toPath(), new File(path.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+    open();
+  }
+
+  // Writes what is still buffered and closes the file.
+  public void close() throws IOException {
+    closed = true;
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    stream.close();
+  }
+}
+
+// ChangeEvent is one change made by a command. The user is the one added or
+// removed, or the owner of the house, which for a purchase is the seller. The
+// house and the buyer are null where they do not apply.
+class ChangeEvent {
+  long sequence; // set by the ChangeLog when the event is appended
+
+  private ChangeKind kind;
+  private User user;
+  private House house;
+  private User buyer;
+
+  public ChangeEvent(ChangeKind kind, User user, House house, User buyer) {
+    this.kind = kind;
+    this.user = user;
+    this.house = house;
+    this.buyer = buyer;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public ChangeKind getKind() {
+    return kind;
+  }
+
+  public User getUser() {
+    return user;
+  }
+
+  public House getHouse() {
+    return house;
+  }
+
+  public User getBuyer() {
+    return buyer;
+  }
+
+  // Appends the event as a CSV line: the sequence, the kind and then
+  //   USER_ADDED       name,last_name,type,address
+  //   USER_REMOVED     name,last_name
+  //   HOUSE_ADDED      house_id,owner_name,owner_last,price,area,address,rooms,parking,construction
+  //   HOUSE_REMOVED    house_id,owner_name,owner_last
+  //   HOUSE_PURCHASED  house_id,seller_name,seller_last,buyer_name,buyer_last,price
+  public StringBuilder appendTo(StringBuilder line) {
+    line.append(sequence).append(',').append(kind).append(',');
+    if (house != null) {
+      line.append(house.getId()).append(',');
+    }
+    CommandDispatcher.appendCsv(line, user.getName()).append(',');
+    CommandDispatcher.appendCsv(line, user.getLastName());
+    switch (kind) {
+      case USER_ADDED:
+        line.append(',').append(user.getUserType()).append(',');
+        CommandDispatcher.appendCsv(line, user.getAddress());
+        break;
+      case HOUSE_ADDED:
+        line.append(',').append(house.getPrice()).append(',').append(house.getArea()).append(',');
+        CommandDispatcher.appendCsv(line, house.getAddress()).append(',').append(house.getNumberOfRooms())
+            .append(',').append(house.hasParking()).append(',').append(house.getYearOfConstruction());
+        break;
+      case HOUSE_PURCHASED:
+        line.append(',');
+        CommandDispatcher.appendCsv(line, buyer.getName()).append(',');
+        CommandDispatcher.appendCsv(line, buyer.getLastName()).append(',').append(house.getPrice());
+        break;
+      default:
+        break;
+    }
+    return line;
+  }
+}
+
+// ChangeLog numbers the changes made through the commands from 0 on, so other
+// programs can follow the data by reading the events after the last one they
+// saw instead of reading everything again. It is a ring of the latest events:
+// appending never blocks and never waits for readers, it overwrites the oldest
+// event instead, and a reader that fell further behind than the ring holds is
+// told to start over from a full report. Readers pull a bounded number of
+// events at a time, which keeps a slow reader from being flooded. The events
+// are kept in memory only, so the numbering starts over with the program.
+class ChangeLog {
+  private AtomicReferenceArray<ChangeEvent> events;
+  private int mask;
+  private AtomicLong next = new AtomicLong();
+
+  // The capacity is rounded up to a power of two.
+  public ChangeLog(int capacity) {
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    this.events = new AtomicReferenceArray<ChangeEvent>(size);
+    this.mask = size - 1;
+  }
+
+  public void append(ChangeEvent event) {
+    long sequence = next.getAndIncrement();
+    event.sequence = sequence;
+    int slot = (int) sequence & mask;
+
+    // A writer overtaken by one a whole ring ahead leaves the newer event in place.
+    ChangeEvent present;
+    do {
+      present = events.get(slot);
+      if (present != null && present.sequence > sequence) {
+        return;
+      }
+    } while (!events.compareAndSet(slot, present, event));
+  }
+
+  // The sequence the next event gets.
+  public long getNext() {
+    return next.get();
+  }
+
+  // The oldest sequence that may still be read.
+  public long getOldest() {
+    return Math.max(0, next.get() - events.length());
+  }
+
+  // Up to limit events from the given sequence on, stopping before an event
+  // that is numbered but not written yet so they always come in order. Returns
+  // null when the event at from was already overwritten.
+  public List<ChangeEvent> read(long from, int limit) {
+    List<ChangeEvent> result = new ArrayList<ChangeEvent>(Math.min(limit, 1024));
+    long head = next.get();
+    for (long sequence = from; sequence < head && result.size() < limit; sequence++) {
+      ChangeEvent event = events.get((int) sequence & mask);
+      if (event == null || event.sequence < sequence) {
+        break;
+      }
+      if (event.sequence > sequence) {
+        return result.isEmpty() ? null : result;
+      }
+      result.add(event);
+    }
+    return result;
+  }
+}
+
+// SavedSearches keeps the standing searches of customers and the matches
+// they have not fetched yet, up to date as houses are added, bought and
+// removed. A changed house is only tested against the searches that can match
+// it: a search is indexed by the exact ID or address it names, by a bound of
+// a range on one field, or, for options, by the customer's budget, and only
+// searches with none of these are tested one by one. Fetching the new matches
+// then costs as much as there are of them. Searches are kept in memory only.
+class SavedSearches {
+  static class Search {
+    private int id;
+    private User customer;
+    private String description;
+    private HouseQuery query; // null for an options search
+    private HouseQuery.Condition anchor; // the condition the search is indexed by
+    private int budget;
+    private LinkedHashMap<Integer, House> pending = new LinkedHashMap<Integer, House>();
+
+    public int getId() {
+      return id;
+    }
+
+    public String getDescription() {
+      return description;
+    }
+
+    // An options search takes what options lists: unsold houses of sellers
+    // within the budget.
+    boolean matches(House house) {
+      if (query == null) {
+        return !house.isPurchased() && house.getOwner().getUserType() == UserType.SELLER
+            && house.getPrice() <= budget;
+      }
+      return query.matches(house);
+    }
+  }
+
+  private int nextId = 1;
+  private HashMap<Integer, Search> searches = new HashMap<Integer, Search>();
+  private HashMap<User, List<Search>> byCustomer = new HashMap<User, List<Search>>();
+
+  private TreeMap<Integer, List<Search>> byBudget = new TreeMap<Integer, List<Search>>();
+  private HashMap<Integer, List<Search>> byId = new HashMap<Integer, List<Search>>();
+  private HashMap<String, List<Search>> byAddress = new HashMap<String, List<Search>>();
+  private HashMap<HouseField, TreeMap<Integer, List<Search>>> byLow = new HashMap<HouseField, TreeMap<Integer, List<Search>>>();
+  private HashMap<HouseField, TreeMap<Integer, List<Search>>> byHigh = new HashMap<HouseField, TreeMap<Integer, List<Search>>>();
+  private List<Search> unindexed = new ArrayList<Search>();
+
+  // Keeps the houses the customer can afford, returns the search's ID.
+  public synchronized int addOptions(User customer) {
+    Search search = new Search();
+    search.description = "options";
+    search.budget = customer.getSalary();
+    return add(customer, search);
+  }
+
+  // Keeps the houses a search_house with this key and value finds, returns the
+  // search's ID. Throws IllegalArgumentException when they are not valid.
+  public synchronized int addSearch(User customer, String searchKey, String searchValue) {
+    Search search = new Search();
+    search.description = searchKey + " " + searchValue;
+    search.query = HouseQuery.forSearch(searchKey, searchValue);
+    search.anchor = anchor(search.query);
+    return add(customer, search);
+  }
+
+  private int add(User customer, Search search) {
+    search.id = nextId++;
+    search.customer = customer;
+    searches.put(search.id, search);
+    List<Search> own = byCustomer.get(customer);
+    if (own == null) {
+      own = new ArrayList<Search>();
+      byCustomer.put(customer, own);
+    }
+    own.add(search);
+    index(search, true);
+    return search.id;
+  }
+
+  // Returns whether the customer had a search with the ID.
+  public synchronized boolean remove(User customer, int id) {
+    Search search = searches.get(id);
+    if (search == null || search.customer != customer) {
+      return false;
+    }
+    searches.remove(id);
+    byCustomer.get(customer).remove(search);
+    index(search, false);
+    return true;
+  }
+
+  // The new matches of each of the customer's searches that has any, which
+  // are then forgotten.
+  public synchronized LinkedHashMap<Search, List<House>> take(User customer) {
+    LinkedHashMap<Search, List<House>> result = new LinkedHashMap<Search, List<House>>();
+    List<Search> own = byCustomer.get(customer);
+    if (own == null) {
+      return result;
+    }
+    for (Search search : own) {
+      if (!search.pending.isEmpty()) {
+        result.put(search, new ArrayList<House>(search.pending.values()));
+        search.pending.clear();
+      }
+    }
+    return result;
+  }
+
+  public synchronized void changed(ChangeEvent event) {
+    House house = event.getHouse();
+    switch (event.getKind()) {
+      case HOUSE_ADDED:
+        for (Search search : candidates(house)) {
+          if (search.matches(house)) {
+            search.pending.put(house.getId(), house);
+          }
+        }
+        break;
+      case HOUSE_PURCHASED:
+        // Storages that keep no House objects hand out copies, which may not
+        // show the sale yet, so the house is tested as sold. A sold house is
+        // no option any more, and a query may not want it either.
+        for (Search search : candidates(house)) {
+          if (search.query == null || !search.query.matches(house.getId(), house.getPrice(), house.getArea(),
+              house.getAddressCode(), house.getNumberOfRooms(), house.hasParking(), house.getYearOfConstruction(),
+              true)) {
+            search.pending.remove(house.getId());
+          }
+        }
+        break;
+      case HOUSE_REMOVED:
+        for (Search search : candidates(house)) {
+          search.pending.remove(house.getId());
+        }
+        break;
+      case USER_REMOVED:
+        List<Search> own = byCustomer.remove(event.getUser());
+        if (own != null) {
+          for (Search search : own) {
+            searches.remove(search.id);
+            index(search, false);
+          }
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  // An exact ID or address is the most selective, then a bounded range.
+  private static HouseQuery.Condition anchor(HouseQuery query) {
+    if (query.getGroups().size() != 1) {
+      return null;
+    }
+    HouseQuery.Condition best = null;
+    for (HouseQuery.Condition condition : query.getGroups().get(0)) {
+      if (condition.negated) {
+        continue;
+      }
+      if (condition.field == HouseField.ID && condition.low == condition.high) {
+        return condition;
+      }
+      if (condition.field == HouseField.ADDRESS) {
+        if (condition.pattern.indexOf('*') < 0) {
+          return condition;
+        }
+      } else if (best == null && (condition.low != Integer.MIN_VALUE || condition.high != Integer.MAX_VALUE)) {
+        best = condition;
+      }
+    }
+    return best;
+  }
+
+  private void index(Search search, boolean add) {
+    HouseQuery.Condition anchor = search.anchor;
+    if (search.query == null) {
+      update(byBudget, search.budget, search, add);
+    } else if (anchor == null) {
+      update(unindexed, search, add);
+    } else if (anchor.field == HouseField.ID) {
+      update(byId, anchor.low, search, add);
+    } else if (anchor.field == HouseField.ADDRESS) {
+      update(byAddress, anchor.pattern, search, add);
+    } else if (anchor.low != Integer.MIN_VALUE) {
+      update(bounds(byLow, anchor.field), anchor.low, search, add);
+    } else {
+      update(bounds(byHigh, anchor.field), anchor.high, search, add);
+    }
+  }
+
+  private static TreeMap<Integer, List<Search>> bounds(HashMap<HouseField, TreeMap<Integer, List<Search>>> index,
+      HouseField field) {
+    TreeMap<Integer, List<Search>> bounds = index.get(field);
+    if (bounds == null) {
+      bounds = new TreeMap<Integer, List<Search>>();
+      index.put(field, bounds);
+    }
+    return bounds;
+  }
+
+  private static <K> void update(Map<K, List<Search>> index, K key, Search search, boolean add) {
+    List<Search> bucket = index.get(key);
+    if (bucket == null) {
+      bucket = new ArrayList<Search>();
+      index.put(key, bucket);
+    }
+    update(bucket, search, add);
+    if (bucket.isEmpty()) {
+      index.remove(key);
+    }
+  }
+
+  private static void update(List<Search> bucket, Search search, boolean add) {
+    if (add) {
+      bucket.add(search);
+    } else {
+      bucket.remove(search);
+    }
+  }
+
+  // The searches that may match the house, each of them once.
+  private List<Search> candidates(House house) {
+    List<Search> result = new ArrayList<Search>(unindexed);
+    addAll(result, byId.get(house.getId()));
+    addAll(result, byAddress.get(house.getAddress()));
+    for (List<Search> bucket : byBudget.tailMap(house.getPrice(), true).values()) {
+      result.addAll(bucket);
+    }
+    for (Map.Entry<HouseField, TreeMap<Integer, List<Search>>> entry : byLow.entrySet()) {
+      int key = HouseQuery.key(entry.getKey(), house);
+      for (List<Search> bucket : entry.getValue().headMap(key, true).values()) {
+        result.addAll(bucket);
+      }
+    }
+    for (Map.Entry<HouseField, TreeMap<Integer, List<Search>>> entry : byHigh.entrySet()) {
+      int key = HouseQuery.key(entry.getKey(), house);
+      for (List<Search> bucket : entry.getValue().tailMap(key, true).values()) {
+        result.addAll(bucket);
+      }
+    }
+    return result;
+  }
+
+  private static void addAll(List<Search> result, List<Search> bucket) {
+    if (bucket != null) {
+      result.addAll(bucket);
+    }
+  }
+}
+
+// QuantileSketch counts int values in log-linear buckets like
+// CommandMetrics.Histogram, with SUB_BUCKETS buckets per power of two, so a
+// quantile is within 1/SUB_BUCKETS of the true value. Unlike the histogram a
+// value can be taken out again, only the buckets between the lowest and the
+// highest value are allocated, and two sketches merge by adding their counts.
+class QuantileSketch {
+  private static final int SUB_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private int first; // bucket of counts[0]
+  private int[] counts = new int[0];
+  private long total;
+
+  private static int bucket(int value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return Math.max(0, value);
+    }
+    int shift = 31 - Integer.numberOfLeadingZeros(value) - SUB_BITS;
+    return (shift + 1) * SUB_BUCKETS + ((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  private static long lowest(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+  }
+
+  private static long highest(int bucket) {
+    return lowest(bucket + 1) - 1;
+  }
+
+  public void add(int value) {
+    change(bucket(value), 1);
+  }
+
+  public void remove(int value) {
+    change(bucket(value), -1);
+  }
+
+  public void merge(QuantileSketch other) {
+    for (int i = 0; i < other.counts.length; i++) {
+      if (other.counts[i] != 0) {
+        change(other.first + i, other.counts[i]);
+      }
+    }
+  }
+
+  private void change(int bucket, int delta) {
+    if (counts.length == 0) {
+      first = bucket;
+      counts = new int[4];
+    } else if (bucket < first) {
+      // Grows by at least its size, so it is done a logarithmic number of times.
+      int start = Math.max(0, Math.min(bucket, first - counts.length));
+      int[] grown = new int[counts.length + first - start];
+      System.arraycopy(counts, 0, grown, first - start, counts.length);
+      counts = grown;
+      first = start;
+    } else if (bucket - first >= counts.length) {
+      counts = Arrays.copyOf(counts, Math.max(bucket - first + 1, counts.length * 2));
+    }
+    counts[bucket - first] += delta;
+    total += delta;
+  }
+
+  public long getCount() {
+    return total;
+  }
+
+  // The value that the given fraction of the values do not exceed, rounded up
+  // to the end of its bucket, 0 when there are none.
+  public long quantile(double fraction) {
+    long rank = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i = 0; i < counts.length && total > 0; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return highest(first + i);
+      }
+    }
+    return 0;
+  }
+
+  // The start of the lowest and the end of the highest bucket in use.
+  public long lowestValue() {
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] != 0) {
+        return lowest(first + i);
+      }
+    }
+    return 0;
+  }
+
+  public long highestValue() {
+    for (int i = counts.length - 1; i >= 0; i--) {
+      if (counts[i] != 0) {
+        return highest(first + i);
+      }
+    }
+    return 0;
+  }
+}
+
+// MarketStats keeps running totals of the houses at every address, so the
+// market command costs as much as there are addresses, not houses. Adding,
+// selling or removing a house updates the totals of its address in constant
+// time. The price quantiles come from a QuantileSketch per address. The lowest
+// and highest price are exact until the house holding one of them is removed,
+// from then on they are the bounds of the sketch's bucket, shown with a "~",
+// until a new extreme comes in. The quantiles are clamped to them, so the
+// printed prices never run out of order. The totals are built once from the
+// storage and then follow the change events of the commands.
+class MarketStats {
+  static class Group {
+    private String address;
+    private int count;
+    private int unsold;
+    private long prices;
+    private double areas;
+    private long years;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+    private boolean exactMin = true;
+    private boolean exactMax = true;
+    private QuantileSketch sketch = new QuantileSketch();
+
+    Group(String address) {
+      this.address = address;
+    }
+
+    void add(House house, boolean sold) {
+      count++;
+      unsold += sold ? 0 : 1;
+      prices += house.getPrice();
+      areas += house.getArea();
+      years += house.getYearOfConstruction();
+      if (house.getPrice() < min) {
+        min = house.getPrice();
+        exactMin = true;
+      }
+      if (house.getPrice() > max) {
+        max = house.getPrice();
+        exactMax = true;
+      }
+      sketch.add(house.getPrice());
+    }
+
+    void remove(House house) {
+      count--;
+      unsold -= house.isPurchased() ? 0 : 1;
+      prices -= house.getPrice();
+      areas -= house.getArea();
+      years -= house.getYearOfConstruction();
+      sketch.remove(house.getPrice());
+      if (house.getPrice() == min) {
+        min = count == 0 ? Long.MAX_VALUE : sketch.lowestValue();
+        exactMin = count == 0;
+      }
+      if (house.getPrice() == max) {
+        max = count == 0 ? Long.MIN_VALUE : sketch.highestValue();
+        exactMax = count == 0;
+      }
+    }
+
+    void merge(Group other) {
+      count += other.count;
+      unsold += other.unsold;
+      prices += other.prices;
+      areas += other.areas;
+      years += other.years;
+      // A bound that is not exact is never beyond the true price, so when both
+      // are the same one of them being exact is enough.
+      if (other.min < min) {
+        min = other.min;
+        exactMin = other.exactMin;
+      } else if (other.min == min) {
+        exactMin |= other.exactMin;
+      }
+      if (other.max > max) {
+        max = other.max;
+        exactMax = other.exactMax;
+      } else if (other.max == max) {
+        exactMax |= other.exactMax;
+      }
+      sketch.merge(other.sketch);
+    }
+
+    private long quantile(double fraction) {
+      return Math.max(min, Math.min(max, sketch.quantile(fraction)));
+    }
+
+    public String getAddress() {
+      return address;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    // A summary line per line of the market command.
+    List<String> format(int currentYear) {
+      List<String> lines = new ArrayList<String>();
+      lines.add(address + ": " + count + " houses, " + unsold + " unsold");
+      lines.add("  price: min " + (exactMin ? "" : "~") + min + ", p25 " + quantile(0.25) + ", median "
+          + quantile(0.5) + ", p75 " + quantile(0.75) + ", p90 " + quantile(0.9) + ", max "
+          + (exactMax ? "" : "~") + max + String.format(", average %.1f", (double) prices / count));
+      lines.add(String.format("  price per area: %.1f", areas > 0 ? prices / areas : 0.0));
+      lines.add(String.format("  average age: %.1f", currentYear - (double) years / count));
+      return lines;
+    }
+  }
+
+  private IntHashMap<Group> groups = new IntHashMap<Group>();
+
+  // Totals of the houses the storage holds now.
+  public static MarketStats of(Storage storage) {
+    MarketStats stats = new MarketStats();
+    long cursor = 0;
+    for (List<User> page = storage.getUsersAfter(cursor, 16384); !page.isEmpty();
+        page = storage.getUsersAfter(cursor, 16384)) {
+      cursor = page.get(page.size() - 1).getSerial();
+      for (User user : page) {
+        for (House house : storage.getHousesOf(user)) {
+          stats.group(house).add(house, house.isPurchased());
+        }
+      }
+    }
+    return stats;
+  }
+
+  private Group group(House house) {
+    Group group = groups.get(house.getAddressCode());
+    if (group == null) {
+      group = new Group(house.getAddress());
+      groups.put(house.getAddressCode(), group);
+    }
+    return group;
+  }
+
+  public synchronized void changed(ChangeEvent event) {
+    House house = event.getHouse();
+    switch (event.getKind()) {
+      case HOUSE_ADDED:
+        group(house).add(house, house.isPurchased());
+        break;
+      case HOUSE_PURCHASED:
+        // A storage without House objects may hand out a copy from before the sale.
+        group(house).unsold--;
+        break;
+      case HOUSE_REMOVED:
+        Group group = group(house);
+        group.remove(house);
+        if (group.count == 0) {
+          groups.remove(house.getAddressCode());
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  // Copies of the groups, sorted by address, with one for all of them last.
+  // Only the group of the address is returned when one is given.
+  public synchronized List<Group> snapshot(String address) {
+    List<Group> result = new ArrayList<Group>();
+    Group all = new Group("All addresses");
+    for (Group group : groups.values()) {
+      if (address == null || group.address.equals(address)) {
+        Group copy = new Group(group.address);
+        copy.merge(group);
+        result.add(copy);
+        all.merge(group);
+      }
+    }
+    result.sort(new Comparator<Group>() {
+      public int compare(Group a, Group b) {
+        return a.address.compareTo(b.address);
+      }
+    });
+    if (address == null && !result.isEmpty()) {
+      result.add(all);
+    }
+    return result;
+  }
+}
+
+// Storage class is used to store all the data in the system.
+//
+// Storage is safe to share between threads. Its collections and indexes are
+// guarded by a read/write lock, so any number of searches run in parallel while
+// an update holds the lock only for the few index changes it makes. Commands
+// that read and then change a few users lock just those users' stripes with
+// lockUsers, so unrelated commands do not wait for each other.
+class Storage {
+  private static final int STRIPES = 256;
+
+  private ArrayList<User> users;
+
+  // Secondary indexes over the users list. Every key maps to the users sharing
+  // it, in insertion order, so lookups no longer need to scan the whole list.
+  private HashMap<String, List<User>> usersByFullName;
+  private HashMap<String, List<User>> usersByNationalID;
+  private HashMap<String, List<User>> usersByPhone;
+
+  // Indexes over dictionary codes, for the values many users share.
+  private IntHashMap<List<User>> usersByName;
+  private IntHashMap<List<User>> usersByLastName;
+  private IntHashMap<List<User>> usersByAddress;
+
+  // Every listed house keyed by its ID, regardless of who owns it.
+  private IntHashMap<House> houses;
+
+  // Sorted indexes used for equality and range searches on numeric house fields.
+  private SortedIndex housesByPrice;
+  private SortedIndex housesByArea;
+  private SortedIndex housesByRooms;
+  private SortedIndex housesByConstruction;
+
+  // Houses by address, also answering "Teh*" and "*ran*" patterns.
+  private AddressIndex housesByAddress;
+
+  // Houses that have a location, by the grid cell they are in.
+  private GeoGrid housesByLocation;
+
+  // Unsold houses of sellers ordered by price, the houses a customer can buy.
+  private SortedIndex availableHouses;
+
+  protected ReentrantReadWriteLock lock;
+  private ReentrantLock[] stripes;
+  private ReentrantLock[] houseStripes;
+  private long lastSerial = 0;
+
+  // Results of recent reads, null when nothing is cached.
+  private QueryCache cache;
+
+  public Storage() {
+    users = new ArrayList<User>();
+    usersByFullName = new HashMap<String, List<User>>();
+    usersByNationalID = new HashMap<String, List<User>>();
+    usersByPhone = new HashMap<String, List<User>>();
+    usersByName = new IntHashMap<List<User>>();
+    usersByLastName = new IntHashMap<List<User>>();
+    usersByAddress = new IntHashMap<List<User>>();
+    houses = new IntHashMap<House>(1024);
+    housesByPrice = new SortedIndex();
+    housesByArea = new SortedIndex();
+    housesByRooms = new SortedIndex();
+    housesByConstruction = new SortedIndex();
+    housesByAddress = new AddressIndex();
+    housesByLocation = new GeoGrid();
+    availableHouses = new SortedIndex();
+    lock = new ReentrantReadWriteLock();
+    stripes = new ReentrantLock[STRIPES];
+    houseStripes = new ReentrantLock[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new ReentrantLock();
+      houseStripes[i] = new ReentrantLock();
+    }
+  }
+
+  // Locks the stripes of the users named by the (name, last name) pairs. The
+  // stripes are always taken in the same order, so two commands can not wait
+  // for each other. The returned locks are released with unlock.
+  public List<ReentrantLock> lockUsers(String... names) {
+    int[] indexes = new int[names.length / 2];
+    for (int i = 0; i < indexes.length; i++) {
+      indexes[i] = (fullNameKey(names[2 * i], names[2 * i + 1]).hashCode() & 0x7FFFFFFF) % STRIPES;
+    }
+    Arrays.sort(indexes);
+
+    List<ReentrantLock> locked = new ArrayList<ReentrantLock>(indexes.length);
+    for (int i = 0; i < indexes.length; i++) {
+      if (i == 0 || indexes[i] != indexes[i - 1]) {
+        stripes[indexes[i]].lock();
+        locked.add(stripes[indexes[i]]);
+      }
+    }
+    return locked;
+  }
+
+  public static void unlock(List<ReentrantLock> locks) {
+    for (int i = locks.size() - 1; i >= 0; i--) {
+      locks.get(i).unlock();
+    }
+  }
+
+  public void addUser(User user) {
+    lock.writeLock().lock();
+    try {
+      user.setSerial(nextSerial());
+      users.add(user);
+      index(usersByFullName, fullNameKey(user.getName(), user.getLastName()), user);
+      index(usersByNationalID, user.getNationalID(), user);
+      index(usersByPhone, user.getPhoneNumber(), user);
+      index(usersByName, user.getNameCode(), user);
+      index(usersByLastName, user.getLastNameCode(), user);
+      index(usersByAddress, user.getAddressCode(), user);
+      changed(QueryCache.USERS);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Removes the user, not the others sharing their national ID, whose stripes
+  // the caller does not hold. The users list is in serial order, so the user
+  // is found by a binary search.
+  public void removeUser(User user) {
+    lock.writeLock().lock();
+    try {
+      int position = firstAfter(user.getSerial() - 1);
+      if (position == users.size() || users.get(position) != user) {
+        return;
+      }
+
+      users.remove(position);
+      unindex(usersByFullName, fullNameKey(user.getName(), user.getLastName()), user);
+      unindex(usersByNationalID, user.getNationalID(), user);
+      unindex(usersByPhone, user.getPhoneNumber(), user);
+      unindex(usersByName, user.getNameCode(), user);
+      unindex(usersByLastName, user.getLastNameCode(), user);
+      unindex(usersByAddress, user.getAddressCode(), user);
+
+      // Houses of a removed user are no longer reachable.
+      removeHousesOf(user);
+      changed(QueryCache.USERS | QueryCache.HOUSES);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Called with the write lock held for every user added.
+  protected long nextSerial() {
+    return ++lastSerial;
+  }
+
+  public QueryCache getCache() {
+    return cache;
+  }
+
+  public void setCache(QueryCache cache) {
+    this.cache = cache;
+  }
+
+  // Moves the cached versions of the changed data. Called once the change has
+  // been applied, with the write lock still held.
+  protected void changed(int dependencies) {
+    QueryCache cache = this.cache;
+    if (cache != null) {
+      cache.changed(dependencies);
+    }
+  }
+
+  // Called with the write lock held when the user is removed.
+  protected void removeHousesOf(User user) {
+    for (House house : user.getHouses()) {
+      unindexHouse(house);
+    }
+  }
+
+  public User getUser(String name, String lastName) {
+    lock.readLock().lock();
+    try {
+      List<User> matches = usersByFullName.get(fullNameKey(name, lastName));
+      return matches == null ? null : matches.get(0);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // Names can not contain a NUL character, so it safely separates the two parts.
+  protected static String fullNameKey(String name, String lastName) {
+    return name + "\0" + lastName;
+  }
+
+  private static void index(HashMap<String, List<User>> index, String key, User user) {
+    List<User> bucket = index.get(key);
+    if (bucket == null) {
+      bucket = new ArrayList<User>(1);
+      index.put(key, bucket);
+    }
+    bucket.add(user);
+  }
+
+  private static void unindex(HashMap<String, List<User>> index, String key, User user) {
+    List<User> bucket = index.get(key);
+    if (bucket == null) {
+      return;
+    }
+    bucket.remove(user);
+    if (bucket.isEmpty()) {
+      index.remove(key);
+    }
+  }
+
+  private static void index(IntHashMap<List<User>> index, int key, User user) {
+    List<User> bucket = index.get(key);
+    if (bucket == null) {
+      bucket = new ArrayList<User>(1);
+      index.put(key, bucket);
+    }
+    bucket.add(user);
+  }
+
+  private static void unindex(IntHashMap<List<User>> index, int key, User user) {
+    List<User> bucket = index.get(key);
+    if (bucket == null) {
+      return;
+    }
+    bucket.remove(user);
+    if (bucket.isEmpty()) {
+      index.remove(key);
+    }
+  }
+
+  // A copy of the users list, safe to iterate while other threads make changes.
+  public ArrayList<User> getUsers() {
+    lock.readLock().lock();
+    try {
+      return new ArrayList<User>(users);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // At most "limit" users that come after the cursor, a user serial, in order.
+  // The list is sorted by serial, so the cursor is found by a binary search.
+  public List<User> getUsersAfter(long cursor, int limit) {
+    lock.readLock().lock();
+    try {
+      int low = firstAfter(cursor);
+      int end = (int) Math.min((long) low + limit, users.size());
+      return new ArrayList<User>(users.subList(low, end));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // The position of the first user with a serial above the cursor. Called
+  // with the lock held.
+  private int firstAfter(long cursor) {
+    int low = 0;
+    int high = users.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (users.get(mid).getSerial() <= cursor) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  public void addHouse(House house) {
+    lock.writeLock().lock();
+    try {
+      indexHouse(house);
+      house.getOwner().addHouse(house);
+      changed(QueryCache.HOUSES);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Adds many users and houses in one go, as an import or a snapshot load does.
+  // The owners of the houses must be stored or among the users, and the house
+  // IDs must not be taken.
+  public void addAll(List<User> newUsers, List<House> newHouses) {
+    lock.writeLock().lock();
+    try {
+      for (User user : newUsers) {
+        addUser(user);
+      }
+      addHouses(newHouses);
+      changed(QueryCache.USERS | QueryCache.HOUSES);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Adds what an import read. Its users and house IDs were checked without a
+  // lock, so the users whose full name and the houses whose ID were taken since
+  // are left out here, along with the houses of the users left out. The lists
+  // are left holding what was added.
+  public void addImported(List<User> newUsers, List<House> newHouses) {
+    lock.writeLock().lock();
+    try {
+      dropTaken(newUsers, newHouses);
+      addAll(newUsers, newHouses);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  protected void dropTaken(List<User> newUsers, List<House> newHouses) {
+    List<User> users = new ArrayList<User>(newUsers.size());
+    List<User> dropped = new ArrayList<User>();
+    for (User user : newUsers) {
+      (getUser(user.getName(), user.getLastName()) == null ? users : dropped).add(user);
+    }
+    List<House> houses = new ArrayList<House>(newHouses.size());
+    for (House house : newHouses) {
+      if (getHouse(house.getId()) == null && !dropped.contains(house.getOwner())) {
+        houses.add(house);
+      }
+    }
+    if (users.size() < newUsers.size()) {
+      newUsers.clear();
+      newUsers.addAll(users);
+    }
+    if (houses.size() < newHouses.size()) {
+      newHouses.clear();
+      newHouses.addAll(houses);
+    }
+  }
+
+
+  // Called with the write lock held. The sorted indexes are built once for all
+  // the houses instead of once per house.
+  protected void addHouses(List<House> newHouses) {
+    int count = newHouses.size();
+    int[] ids = new int[count];
+    int[] prices = new int[count];
+    int[] areas = new int[count];
+    int[] rooms = new int[count];
+    int[] years = new int[count];
+    int[] addresses = new int[count];
+    int[] availableIds = new int[count];
+    int[] availablePrices = new int[count];
+    int available = 0;
+
+    for (int i = 0; i < count; i++) {
+      House house = newHouses.get(i);
+      houses.put(house.getId(), house);
+      house.getOwner().addHouse(house);
+      ids[i] = house.getId();
+      prices[i] = house.getPrice();
+      areas[i] = SortedIndex.floatKey(house.getArea());
+      rooms[i] = house.getNumberOfRooms();
+      years[i] = house.getYearOfConstruction();
+      addresses[i] = house.getAddressCode();
+      if (house.hasLocation()) {
+        housesByLocation.add(house.getId(), house.getLatitude(), house.getLongitude());
+      }
+      if (!house.isPurchased() && house.getOwner().getUserType() == UserType.SELLER) {
+        availableIds[available] = house.getId();
+        availablePrices[available++] = house.getPrice();
+      }
+    }
+
+    housesByPrice.addAll(prices, ids, count);
+    housesByArea.addAll(areas, ids, count);
+    housesByRooms.addAll(rooms, ids, count);
+    housesByConstruction.addAll(years, ids, count);
+    housesByAddress.addAll(addresses, ids, count);
+    availableHouses.addAll(availablePrices, availableIds, available);
+  }
+
+  public House getHouse(int id) {
+    lock.readLock().lock();
+    try {
+      return houses.get(id);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public House removeHouse(int id) {
+    lock.writeLock().lock();
+    try {
+      House house = houses.get(id);
+      if (house != null) {
+        unindexHouse(house);
+        house.getOwner().removeHouse(id);
+        changed(QueryCache.HOUSES);
+      }
+      return house;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void indexHouse(House house) {
+    int id = house.getId();
+    houses.put(id, house);
+    housesByPrice.add(house.getPrice(), id);
+    housesByArea.add(SortedIndex.floatKey(house.getArea()), id);
+    housesByRooms.add(house.getNumberOfRooms(), id);
+    housesByConstruction.add(house.getYearOfConstruction(), id);
+    housesByAddress.add(house.getAddressCode(), id);
+    if (house.hasLocation()) {
+      housesByLocation.add(id, house.getLatitude(), house.getLongitude());
+    }
+    if (!house.isPurchased() && house.getOwner().getUserType() == UserType.SELLER) {
+      availableHouses.add(house.getPrice(), id);
+    }
+  }
+
+  private void unindexHouse(House house) {
+    int id = house.getId();
+    houses.remove(id);
+    housesByPrice.remove(house.getPrice(), id);
+    housesByArea.remove(SortedIndex.floatKey(house.getArea()), id);
+    housesByRooms.remove(house.getNumberOfRooms(), id);
+    housesByConstruction.remove(house.getYearOfConstruction(), id);
+    housesByAddress.remove(house.getAddressCode(), id);
+    if (house.hasLocation()) {
+      housesByLocation.remove(id, house.getLatitude(), house.getLongitude());
+    }
+    availableHouses.remove(house.getPrice(), id);
+  }
+
+  // Unsold houses listed by sellers that cost at most maxPrice, cheapest first.
+  // The first "skip" houses are left out and at most "limit" are returned.
+  public List<House> getAvailableHouses(int maxPrice, int skip, int limit) {
+    final List<House> result = new ArrayList<House>();
+    lock.readLock().lock();
+    try {
+      availableHouses.forEachInRange(Integer.MIN_VALUE, maxPrice, skip, limit, new IntConsumer() {
+        public void accept(int id) {
+          result.add(houses.get(id));
+        }
+      });
+    } finally {
+      lock.readLock().unlock();
+    }
+    return result;
+  }
+
+  // Sells the house from the seller to the buyer as one transaction. The seller
+  // and buyer stripes and then the house stripe are locked, always in that
+  // order, and every rule is checked again under them, so of several buyers
+  // racing for the same house exactly one wins while purchases of unrelated
+  // houses run side by side.
+  public PurchaseResult purchase(int houseId, User seller, User buyer) {
+    List<ReentrantLock> locks = lockUsers(seller.getName(), seller.getLastName(), buyer.getName(),
+        buyer.getLastName());
+    ReentrantLock houseLock = houseStripes[(houseId & 0x7FFFFFFF) % STRIPES];
+    houseLock.lock();
+    try {
+      House house = getHouse(houseId);
+      if (house == null || house.getOwner() != seller) {
+        return PurchaseResult.HOUSE_NOT_FOUND;
+      }
+
+      // The buyer must have enough money to buy the house.
+      if (buyer.getSalary() < house.getPrice()) {
+        return PurchaseResult.NOT_ENOUGH_MONEY;
+      }
+
+      // The buyer must not be the owner of the house.
+      if (buyer.equals(house.getOwner())) {
+        return PurchaseResult.BUYER_IS_OWNER;
+      }
+
+      // The buyer must not be the owner of any other house.
+      if (ownsHouses(buyer)) {
+        return PurchaseResult.BUYER_OWNS_HOUSE;
+      }
+
+      transferHouse(house, buyer);
+      buyer.setHasPurchasedHouse(true);
+      return PurchaseResult.PURCHASED;
+    } finally {
+      houseLock.unlock();
+      unlock(locks);
+    }
+  }
+
+  public Collection<House> getHousesOf(User user) {
+    return user.getHouses();
+  }
+
+  protected boolean ownsHouses(User user) {
+    return user.hasHouses();
+  }
+
+  // Moves the house from its current owner to the buyer and marks it as sold.
+  protected void transferHouse(House house, User buyer) {
+    lock.writeLock().lock();
+    try {
+      availableHouses.remove(house.getPrice(), house.getId());
+      User seller = house.changeOwner(buyer);
+      seller.removeHouse(house.getId());
+      buyer.addHouse(house);
+      changed(QueryCache.HOUSES);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public List<User> searchUser(String searchKey, String searchValue) {
+    lock.readLock().lock();
+    try {
+      // Indexed keys are answered directly from their hash index.
+      HashMap<String, List<User>> index = null;
+      if (searchKey.equals("ID")) {
+        index = usersByNationalID;
+      } else if (searchKey.equals("phone")) {
+        index = usersByPhone;
+      }
+      if (index != null) {
+        List<User> matches = index.get(searchValue);
+        return matches == null ? new ArrayList<User>() : new ArrayList<User>(matches);
+      }
+
+      // Names and addresses are looked up by their dictionary code, a value
+      // that was never seen has no code and so no users.
+      IntHashMap<List<User>> codeIndex = null;
+      int code = -1;
+      if (searchKey.equals("name")) {
+        codeIndex = usersByName;
+        code = Variables.NAMES.lookup(searchValue);
+      } else if (searchKey.equals("last")) {
+        codeIndex = usersByLastName;
+        code = Variables.NAMES.lookup(searchValue);
+      } else if (searchKey.equals("address")) {
+        codeIndex = usersByAddress;
+        code = Variables.ADDRESSES.lookup(searchValue);
+      }
+      if (codeIndex != null) {
+        List<User> matches = code < 0 ? null : codeIndex.get(code);
+        return matches == null ? new ArrayList<User>() : new ArrayList<User>(matches);
+      }
+
+      List<User> result = new ArrayList<User>();
+      if (searchKey.equals("userType")) {
+        final UserType type = UserType.valueOf(searchValue);
+        IntList rows = ParallelScan.filter(users.size(), new IntPredicate() {
+          public boolean test(int row) {
+            return users.get(row).getUserType() == type;
+          }
+        });
+        for (int i = 0; i < rows.size(); i++) {
+          result.add(users.get(rows.get(i)));
+        }
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // The value is either an exact value or a "<min>..<max>" range for the numeric
+  // keys (price, area, rooms, construction). Either bound of a range may be
+  // left out, "3.." means at least 3. An address may contain "*" wildcards.
+  public List<House> searchHouse(String searchKey, String searchValue) {
+    final List<House> result = new ArrayList<House>();
+
+    lock.readLock().lock();
+    try {
+      if (searchKey.equals("id")) {
+        House house = houses.get(Integer.parseInt(searchValue));
+        if (house != null) {
+          result.add(house);
+        }
+        return result;
+      }
+
+      SortedIndex index = null;
+      if (searchKey.equals("price")) {
+        index = housesByPrice;
+      } else if (searchKey.equals("area")) {
+        index = housesByArea;
+      } else if (searchKey.equals("rooms")) {
+        index = housesByRooms;
+      } else if (searchKey.equals("construction")) {
+        index = housesByConstruction;
+      }
+      if (index != null) {
+        int separator = searchValue.indexOf("..");
+        String from = separator < 0 ? searchValue : searchValue.substring(0, separator);
+        String to = separator < 0 ? searchValue : searchValue.substring(separator + 2);
+        int low = from.isEmpty() ? Integer.MIN_VALUE : indexKey(searchKey, from);
+        int high = to.isEmpty() ? Integer.MAX_VALUE : indexKey(searchKey, to);
+
+        index.forEachInRange(low, high, new IntConsumer() {
+          public void accept(int id) {
+            result.add(houses.get(id));
+          }
+        });
+        return result;
+      }
+
+      if (searchKey.equals("address")) {
+        final IntList matches = new IntList();
+        IntList addresses = housesByAddress.match(searchValue);
+        for (int i = 0; i < addresses.size(); i++) {
+          housesByAddress.forEachHouse(addresses.get(i), new IntConsumer() {
+            public void accept(int id) {
+              matches.add(id);
+            }
+          });
+        }
+        matches.sort();
+        for (int i = 0; i < matches.size(); i++) {
+          result.add(houses.get(matches.get(i)));
+        }
+        return result;
+      }
+
+      if (searchKey.equals("parking")) {
+        final boolean wanted = Boolean.parseBoolean(searchValue);
+        final House[] all = houses.values().toArray(new House[houses.size()]);
+        IntList rows = ParallelScan.filter(all.length, new IntPredicate() {
+          public boolean test(int row) {
+            return all[row].hasParking() == wanted;
+          }
+        });
+        IntList ids = new IntList(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+          ids.add(all[rows.get(i)].getId());
+        }
+        ids.sort();
+        for (int i = 0; i < ids.size(); i++) {
+          result.add(houses.get(ids.get(i)));
+        }
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // Answers the query from the indexes. Each AND group is read from its most
+  // selective index, the one with the fewest matching entries, and only those
+  // candidates are checked against the whole query. When a group has no usable
+  // index, or the groups would read half the houses anyway, one pass over all
+  // houses is cheaper.
+  public List<House> queryHouses(final HouseQuery query) {
+    lock.readLock().lock();
+    try {
+      final TopK top = new TopK(query.getLimit());
+      List<HouseQuery.Condition> drivers = new ArrayList<HouseQuery.Condition>();
+      long candidates = 0;
+      for (List<HouseQuery.Condition> group : query.getGroups()) {
+        HouseQuery.Condition best = null;
+        int bestCount = Integer.MAX_VALUE;
+        for (HouseQuery.Condition condition : group) {
+          int count = estimate(condition);
+          if (count < bestCount) {
+            best = condition;
+            bestCount = count;
+          }
+        }
+        if (best == null) {
+          drivers = null;
+          break;
+        }
+        drivers.add(best);
+        candidates += bestCount;
+      }
+
+      if (drivers == null || candidates >= houses.size() / 2) {
+        final House[] all = houses.values().toArray(new House[houses.size()]);
+        IntList rows = ParallelScan.filter(all.length, new IntPredicate() {
+          public boolean test(int row) {
+            return query.matches(all[row]);
+          }
+        });
+        for (int i = 0; i < rows.size(); i++) {
+          top.add(query.sortKey(all[rows.get(i)]));
+        }
+      } else {
+        // A house matching several groups is only taken once.
+        final IntHashMap<House> seen = drivers.size() > 1 ? new IntHashMap<House>() : null;
+        IntConsumer candidate = new IntConsumer() {
+          public void accept(int id) {
+            House house = houses.get(id);
+            if (house != null && query.matches(house) && (seen == null || seen.put(id, house) == null)) {
+              top.add(query.sortKey(house));
+            }
+          }
+        };
+        CommandTrace.enter(Phase.FILTER);
+        for (HouseQuery.Condition driver : drivers) {
+          forEachCandidate(driver, candidate);
+        }
+      }
+
+      long[] order = top.sorted();
+      List<House> result = new ArrayList<House>(order.length);
+      for (long entry : order) {
+        result.add(houses.get((int) entry));
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // Houses with a location at most radius kilometres from the point that match
+  // the filter, or all of them when it is null, nearest first and then by ID.
+  // At most limit are returned. Only the grid cells around the point are read.
+  public List<House> searchNear(double latitude, double longitude, double radius, int limit,
+      final HouseQuery filter) {
+    lock.readLock().lock();
+    try {
+      final TopK top = new TopK(limit);
+      CommandTrace.enter(Phase.FILTER);
+      housesByLocation.forEachNear(latitude, longitude, radius, new GeoGrid.Visitor() {
+        public void visit(int id, double distance) {
+          if (filter == null || filter.matches(houses.get(id))) {
+            top.add(GeoGrid.sortKey(distance, id));
+          }
+        }
+      });
+
+      long[] order = top.sorted();
+      List<House> result = new ArrayList<House>(order.length);
+      for (long entry : order) {
+        result.add(houses.get((int) entry));
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // The k houses with a location nearest to the point that match the filter.
+  // The radius searched starts at a kilometre and doubles until k houses are
+  // found or it takes in the whole earth, so a dense area is answered from a
+  // few grid cells and the last radius reads at most four times the area needed.
+  public List<House> nearestHouses(double latitude, double longitude, int k, HouseQuery filter) {
+    for (double radius = 1;; radius *= 2) {
+      List<House> houses = searchNear(latitude, longitude, Math.min(radius, GeoGrid.MAX_DISTANCE), k, filter);
+      if (houses.size() >= k || radius >= GeoGrid.MAX_DISTANCE) {
+        return houses;
+      }
+    }
+  }
+
+  // The number of houses an index would hand out for the condition, or
+  // MAX_VALUE when no index answers it.
+  private int estimate(HouseQuery.Condition condition) {
+    if (condition.negated) {
+      return Integer.MAX_VALUE;
+    }
+    switch (condition.field) {
+      case ID:
+        return (int) Math.min((long) condition.high - condition.low + 1, houses.size());
+      case ADDRESS:
+        IntList addresses = housesByAddress.match(condition.pattern);
+        int count = 0;
+        for (int i = 0; i < addresses.size(); i++) {
+          count += housesByAddress.count(addresses.get(i));
+        }
+        return count;
+      default:
+        SortedIndex index = indexOf(condition.field);
+        return index == null ? Integer.MAX_VALUE : index.countInRange(condition.low, condition.high);
+    }
+  }
+
+  private void forEachCandidate(HouseQuery.Condition condition, IntConsumer action) {
+    switch (condition.field) {
+      case ID:
+        for (long id = condition.low; id <= condition.high; id++) {
+          if (houses.containsKey((int) id)) {
+            action.accept((int) id);
+          }
+        }
+        break;
+      case ADDRESS:
+        IntList addresses = housesByAddress.match(condition.pattern);
+        for (int i = 0; i < addresses.size(); i++) {
+          housesByAddress.forEachHouse(addresses.get(i), action);
+        }
+        break;
+      default:
+        indexOf(condition.field).forEachInRange(condition.low, condition.high, action);
+        break;
+    }
+  }
+
+  private SortedIndex indexOf(HouseField field) {
+    switch (field) {
+      case PRICE:
+        return housesByPrice;
+      case AREA:
+        return housesByArea;
+      case ROOMS:
+        return housesByRooms;
+      case CONSTRUCTION:
+        return housesByConstruction;
+      default:
+        return null;
+    }
+  }
+
+  private static int indexKey(String searchKey, String value) {
+    if (searchKey.equals("area")) {
+      return SortedIndex.floatKey(Float.parseFloat(value));
+    }
+    return Integer.parseInt(value);
+  }
+}
+
+// ColumnarStorage is a Storage backend that keeps houses as columns of
+// primitive arrays, one row per house, instead of House objects in per-user
+// lists. Addresses are kept as their code in Variables.ADDRESSES, owners by
+// their serial, and the parking, purchased and available flags are
+// bitsets. Searches and options scan the columns in plain loops over arrays.
+// House objects are only created for the houses a command returns, so they
+// are snapshots of the row and are not kept by the storage.
+//
+// Rows are kept dense: removing a house moves the last row into its place.
+// Results are returned in ID order.
+class ColumnarStorage extends Storage {
+  private int size = 0;
+  private int[] ids = new int[1024];
+  private int[] prices = new int[1024];
+  private float[] areas = new float[1024];
+  private int[] rooms = new int[1024];
+  private int[] years = new int[1024];
+  private int[] owners = new int[1024]; // serial of the owner
+  private int[] addresses = new int[1024]; // code in Variables.ADDRESSES
+  private float[] latitudes = new float[1024]; // NaN when the house has no location
+  private float[] longitudes = new float[1024];
+  private long[] parking = new long[1024 / 64];
+  private long[] purchased = new long[1024 / 64];
+  private long[] available = new long[1024 / 64]; // unsold and listed by a seller
+
+  // Row of every house ID, -1 when the house does not exist.
+  private int[] rowOfId = new int[0];
+
+  private IntHashMap<User> usersBySerial = new IntHashMap<User>(1024);
+  private IntHashMap<IntList> housesByOwner = new IntHashMap<IntList>(1024);
+
+  private static boolean bit(long[] bits, int row) {
+    return (bits[row >>> 6] & (1L << row)) != 0;
+  }
+
+  private static void setBit(long[] bits, int row, boolean value) {
+    if (value) {
+      bits[row >>> 6] |= 1L << row;
+    } else {
+      bits[row >>> 6] &= ~(1L << row);
+    }
+  }
+
+  private void ensureCapacity(int rows) {
+    if (rows <= ids.length) {
+      return;
+    }
+    int capacity = Math.max(rows, ids.length * 2);
+    ids = Arrays.copyOf(ids, capacity);
+    prices = Arrays.copyOf(prices, capacity);
+    areas = Arrays.copyOf(areas, capacity);
+    rooms = Arrays.copyOf(rooms, capacity);
+    years = Arrays.copyOf(years, capacity);
+    owners = Arrays.copyOf(owners, capacity);
+    addresses = Arrays.copyOf(addresses, capacity);
+    latitudes = Arrays.copyOf(latitudes, capacity);
+    longitudes = Arrays.copyOf(longitudes, capacity);
+    parking = Arrays.copyOf(parking, (capacity + 63) / 64);
+    purchased = Arrays.copyOf(purchased, (capacity + 63) / 64);
+    available = Arrays.copyOf(available, (capacity + 63) / 64);
+  }
+
+  private int rowOf(int id) {
+    return id >= 0 && id < rowOfId.length ? rowOfId[id] : -1;
+  }
+
+  private House materialize(int row) {
+    House house = new House(ids[row], prices[row], areas[row], Variables.ADDRESSES.value(addresses[row]), rooms[row],
+        bit(parking, row), bit(purchased, row), years[row], usersBySerial.get(owners[row]));
+    house.setLocation(latitudes[row], longitudes[row]);
+    return house;
+  }
+
+  private List<House> materializeIds(IntList matches) {
+    matches.sort();
+    List<House> result = new ArrayList<House>(matches.size());
+    for (int i = 0; i < matches.size(); i++) {
+      result.add(materialize(rowOfId[matches.get(i)]));
+    }
+    return result;
+  }
+
+  public void addUser(User user) {
+    super.addUser(user);
+    lock.writeLock().lock();
+    try {
+      usersBySerial.put((int) user.getSerial(), user);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  protected void removeHousesOf(User user) {
+    int serial = (int) user.getSerial();
+    IntList houses = housesByOwner.remove(serial);
+    if (houses != null) {
+      for (int i = 0; i < houses.size(); i++) {
+        removeRow(rowOfId[houses.get(i)], false);
+      }
+    }
+    usersBySerial.remove(serial);
+  }
+
+  public void addHouse(House house) {
+    lock.writeLock().lock();
+    try {
+      int id = house.getId();
+      if (id >= rowOfId.length) {
+        int length = rowOfId.length;
+        rowOfId = Arrays.copyOf(rowOfId, Math.max(id + 1, length * 2 + 1024));
+        Arrays.fill(rowOfId, length, rowOfId.length, -1);
+      }
+
+      ensureCapacity(size + 1);
+      int row = size++;
+      User owner = house.getOwner();
+      ids[row] = id;
+      prices[row] = house.getPrice();
+      areas[row] = house.getArea();
+      rooms[row] = house.getNumberOfRooms();
+      years[row] = house.getYearOfConstruction();
+      owners[row] = (int) owner.getSerial();
+      addresses[row] = house.getAddressCode();
+      latitudes[row] = house.getLatitude();
+      longitudes[row] = house.getLongitude();
+      setBit(parking, row, house.hasParking());
+      setBit(purchased, row, house.isPurchased());
+      setBit(available, row, !house.isPurchased() && owner.getUserType() == UserType.SELLER);
+      rowOfId[id] = row;
+
+      IntList houses = housesByOwner.get(owners[row]);
+      if (houses == null) {
+        houses = new IntList(4);
+        housesByOwner.put(owners[row], houses);
+      }
+      houses.add(id);
+      changed(QueryCache.HOUSES);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // The columns have no sorted indexes to build, so houses are simply appended.
+  protected void addHouses(List<House> newHouses) {
+    for (House house : newHouses) {
+      addHouse(house);
+    }
+  }
+
+  public House getHouse(int id) {
+    lock.readLock().lock();
+    try {
+      int row = rowOf(id);
+      return row < 0 ? null : materialize(row);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public House removeHouse(int id) {
+    lock.writeLock().lock();
+    try {
+      int row = rowOf(id);
+      if (row < 0) {
+        return null;
+      }
+      House house = materialize(row);
+      removeRow(row, true);
+      changed(QueryCache.HOUSES);
+      return house;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Moves the last row into the removed one so the columns stay dense.
+  private void removeRow(int row, boolean fromOwner) {
+    int id = ids[row];
+    if (fromOwner) {
+      IntList houses = housesByOwner.get(owners[row]);
+      if (houses != null) {
+        houses.removeValue(id);
+      }
+    }
+
+    int last = --size;
+    if (row != last) {
+      ids[row] = ids[last];
+      prices[row] = prices[last];
+      areas[row] = areas[last];
+      rooms[row] = rooms[last];
+      years[row] = years[last];
+      owners[row] = owners[last];
+      addresses[row] = addresses[last];
+      latitudes[row] = latitudes[last];
+      longitudes[row] = longitudes[last];
+      setBit(parking, row, bit(parking, last));
+      setBit(purchased, row, bit(purchased, last));
+      setBit(available, row, bit(available, last));
+      rowOfId[ids[row]] = row;
+    }
+    setBit(parking, last, false);
+    setBit(purchased, last, false);
+    setBit(available, last, false);
+    rowOfId[id] = -1;
+  }
+
+  public Collection<House> getHousesOf(User user) {
+    lock.readLock().lock();
+    try {
+      IntList houses = housesByOwner.get((int) user.getSerial());
+      List<House> result = new ArrayList<House>(houses == null ? 0 : houses.size());
+      if (houses != null) {
+        for (int i = 0; i < houses.size(); i++) {
+          result.add(materialize(rowOfId[houses.get(i)]));
+        }
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  protected boolean ownsHouses(User user) {
+    lock.readLock().lock();
+    try {
+      IntList houses = housesByOwner.get((int) user.getSerial());
+      return houses != null && !houses.isEmpty();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  protected void transferHouse(House house, User buyer) {
+    lock.writeLock().lock();
+    try {
+      int row = rowOf(house.getId());
+      if (row < 0) {
+        return;
+      }
+      housesByOwner.get(owners[row]).removeValue(house.getId());
+      owners[row] = (int) buyer.getSerial();
+      setBit(purchased, row, true);
+      setBit(available, row, false);
+
+      IntList houses = housesByOwner.get(owners[row]);
+      if (houses == null) {
+        houses = new IntList(4);
+        housesByOwner.put(owners[row], houses);
+      }
+      houses.add(house.getId());
+      house.changeOwner(buyer);
+      changed(QueryCache.HOUSES);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public List<House> getAvailableHouses(final int maxPrice, int skip, int limit) {
+    lock.readLock().lock();
+    try {
+      IntList rows = ParallelScan.filter(size, new IntPredicate() {
+        public boolean test(int row) {
+          return prices[row] <= maxPrice && bit(available, row);
+        }
+      });
+
+      // Matches are packed as (price, ID) so one sort gives the cheapest first.
+      long[] matches = new long[rows.size()];
+      for (int i = 0; i < rows.size(); i++) {
+        int row = rows.get(i);
+        matches[i] = ((long) prices[row] << 32) | (ids[row] & 0xFFFFFFFFL);
+      }
+      Arrays.sort(matches);
+
+      List<House> result = new ArrayList<House>();
+      for (int i = skip; i < matches.length && result.size() < limit; i++) {
+        result.add(materialize(rowOfId[(int) matches[i]]));
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public List<House> searchHouse(final String searchKey, final String searchValue) {
+    lock.readLock().lock();
+    try {
+      if (searchKey.equals("id")) {
+        IntList matches = new IntList();
+        int row = rowOf(Integer.parseInt(searchValue));
+        if (row >= 0) {
+          matches.add(ids[row]);
+        }
+        return materializeIds(matches);
+      }
+
+      IntPredicate predicate = null;
+      if (searchKey.equals("address") && searchValue.indexOf('*') < 0) {
+        final int wanted = Variables.ADDRESSES.lookup(searchValue);
+        predicate = new IntPredicate() {
+          public boolean test(int row) {
+            return addresses[row] == wanted;
+          }
+        };
+      } else if (searchKey.equals("address")) {
+        // The pattern is checked once per distinct address, the answer is kept
+        // by code. Chunks may check the same address twice, the answer is the same.
+        final byte[] matched = new byte[Variables.ADDRESSES.size()];
+        predicate = new IntPredicate() {
+          public boolean test(int row) {
+            int code = addresses[row];
+            if (matched[code] == 0) {
+              matched[code] = AddressIndex.matches(searchValue, Variables.ADDRESSES.value(code)) ? (byte) 1 : (byte) 2;
+            }
+            return matched[code] == 1;
+          }
+        };
+      } else if (searchKey.equals("parking")) {
+        final boolean wanted = Boolean.parseBoolean(searchValue);
+        predicate = new IntPredicate() {
+          public boolean test(int row) {
+            return bit(parking, row) == wanted;
+          }
+        };
+      } else if (searchKey.equals("area")) {
+        int separator = searchValue.indexOf("..");
+        String from = separator < 0 ? searchValue : searchValue.substring(0, separator);
+        String to = separator < 0 ? searchValue : searchValue.substring(separator + 2);
+        final float low = from.isEmpty() ? Float.NEGATIVE_INFINITY : Float.parseFloat(from);
+        final float high = to.isEmpty() ? Float.POSITIVE_INFINITY : Float.parseFloat(to);
+        predicate = new IntPredicate() {
+          public boolean test(int row) {
+            return areas[row] >= low && areas[row] <= high;
+          }
+        };
+      } else {
+        int[] values = null;
+        if (searchKey.equals("price")) {
+          values = prices;
+        } else if (searchKey.equals("rooms")) {
+          values = rooms;
+        } else if (searchKey.equals("construction")) {
+          values = years;
+        }
+        if (values != null) {
+          final int[] column = values;
+          int separator = searchValue.indexOf("..");
+          String from = separator < 0 ? searchValue : searchValue.substring(0, separator);
+          String to = separator < 0 ? searchValue : searchValue.substring(separator + 2);
+          final int low = from.isEmpty() ? Integer.MIN_VALUE : Integer.parseInt(from);
+          final int high = to.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(to);
+          predicate = new IntPredicate() {
+            public boolean test(int row) {
+              return column[row] >= low && column[row] <= high;
+            }
+          };
+        }
+      }
+
+      IntList matches = new IntList();
+      if (predicate != null) {
+        IntList rows = ParallelScan.filter(size, predicate);
+        for (int i = 0; i < rows.size(); i++) {
+          matches.add(ids[rows.get(i)]);
+        }
+      }
+      return materializeIds(matches);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // The columns are scanned once, only the houses kept by the limit are created.
+  public List<House> queryHouses(final HouseQuery query) {
+    lock.readLock().lock();
+    try {
+      IntList rows = ParallelScan.filter(size, new IntPredicate() {
+        public boolean test(int row) {
+          return query.matches(ids[row], prices[row], areas[row], addresses[row], rooms[row], bit(parking, row),
+              years[row], bit(purchased, row));
+        }
+      });
+
+      TopK top = new TopK(query.getLimit());
+      for (int i = 0; i < rows.size(); i++) {
+        int row = rows.get(i);
+        top.add(query.sortKey(ids[row], prices[row], areas[row], rooms[row], bit(parking, row), years[row],
+            bit(purchased, row)));
+      }
+
+      long[] order = top.sorted();
+      List<House> result = new ArrayList<House>(order.length);
+      for (long entry : order) {
+        result.add(materialize(rowOfId[(int) entry]));
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // The location columns are scanned like the others, rows outside the band of
+  // latitudes the radius allows are left out before the distance is computed.
+  public List<House> searchNear(final double latitude, final double longitude, final double radius, int limit,
+      final HouseQuery filter) {
+    lock.readLock().lock();
+    try {
+      final double band = Math.toDegrees(radius / GeoGrid.EARTH_RADIUS);
+      IntPredicate predicate = new IntPredicate() {
+        public boolean test(int row) {
+          float rowLatitude = latitudes[row];
+          return Math.abs(rowLatitude - latitude) <= band
+              && (filter == null || filter.matches(ids[row], prices[row], areas[row], addresses[row], rooms[row],
+                  bit(parking, row), years[row], bit(purchased, row)))
+              && GeoGrid.distance(latitude, longitude, rowLatitude, longitudes[row]) <= radius;
+        }
+      };
+      IntList rows = ParallelScan.filter(size, predicate);
+
+      TopK top = new TopK(limit);
+      for (int i = 0; i < rows.size(); i++) {
+        int row = rows.get(i);
+        top.add(GeoGrid.sortKey(GeoGrid.distance(latitude, longitude, latitudes[row], longitudes[row]), ids[row]));
+      }
+
+      long[] order = top.sorted();
+      List<House> result = new ArrayList<House>(order.length);
+      for (long entry : order) {
+        result.add(materialize(rowOfId[(int) entry]));
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // Every search is one scan, so the nearest houses are found in one go.
+  public List<House> nearestHouses(double latitude, double longitude, int k, HouseQuery filter) {
+    return searchNear(latitude, longitude, GeoGrid.MAX_DISTANCE, k, filter);
+  }
+}
+
+// MappedRecords is a file of fixed size records mapped into memory. The file
+// starts with a 64 byte header of eight long slots and the records follow it.
+// The file is mapped in segments of up to 1 GiB so it may grow past 2 GiB, and
+// as the record size divides the segment size a record never straddles two.
+class MappedRecords implements Closeable {
+  private static final int HEADER = 64;
+  private static final int SEGMENT_SHIFT = 30;
+  private static final long SEGMENT = 1L << SEGMENT_SHIFT;
+
+  private FileChannel channel;
+  private int recordSize;
+  private MappedByteBuffer[] segments;
+  private long capacity;
+
+  public MappedRecords(File file, int recordSize) throws IOException {
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    this.recordSize = recordSize;
+    map(Math.max(channel.size(), HEADER + 1024L * recordSize));
+  }
+
+  private void map(long size) throws IOException {
+    int count = (int) ((size + SEGMENT - 1) >>> SEGMENT_SHIFT);
+    MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+    for (int i = 0; i < count; i++) {
+      long start = (long) i << SEGMENT_SHIFT;
+      mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT, size - start));
+    }
+    segments = mapped;
+    capacity = size;
+  }
+
+  public void ensureCapacity(long records) throws IOException {
+    long needed = HEADER + records * recordSize;
+    if (needed > capacity) {
+      map(Math.max(needed, capacity * 2));
+    }
+  }
+
+  public long getHeader(int slot) {
+    return segments[0].getLong(slot * 8);
+  }
+
+  public void putHeader(int slot, long value) {
+    segments[0].putLong(slot * 8, value);
+  }
+
+  public int getInt(long record, int offset) {
+    long position = HEADER + record * recordSize + offset;
+    return segments[(int) (position >>> SEGMENT_SHIFT)].getInt((int) (position & (SEGMENT - 1)));
+  }
+
+  public void putInt(long record, int offset, int value) {
+    long position = HEADER + record * recordSize + offset;
+    segments[(int) (position >>> SEGMENT_SHIFT)].putInt((int) (position & (SEGMENT - 1)), value);
+  }
+
+  public float getFloat(long record, int offset) {
+    return Float.intBitsToFloat(getInt(record, offset));
+  }
+
+  public void putFloat(long record, int offset, float value) {
+    putInt(record, offset, Float.floatToRawIntBits(value));
+  }
+
+  public void force() {
+    for (MappedByteBuffer segment : segments) {
+      segment.force();
+    }
+  }
+
+  public void close() throws IOException {
+    force();
+    channel.close();
+  }
+}
+
+// MappedStorage is a Storage backend that keeps houses in memory mapped files
+// in a fixed layout, so the listing inventory may be larger than the heap and
+// is used in place after a restart without being read in first. Searches and
+// options read the records in place, House objects are only created for the
+// houses a command returns.
+//
+// The directory holds:
+//   houses.dat      one 64 byte record per house, rows kept dense
+//   house-rows.dat  the row of every house ID, plus one, 0 when there is none
+//   users.dat       one 32 byte record per user ever added
+//   strings.dat     the text fields of the users, in the order they were added
+//   addresses.dat   the distinct house addresses, a house refers to one by code
+//
+// Users are few next to the listings and back the hash indexes of Storage, so
+// they are loaded into the heap when the storage opens. A user's houses form a
+// linked list through the house records, starting in the user record.
+//
+// The files are only forced to the disk when the storage closes, and a change
+// spans several records that the system may write back in any order, so after
+// a crash they can not be trusted. The journal and snapshots are kept in the
+// same directory as with the other storages, and the open.marker file exists
+// while the files are open. When a start finds it, the files are dropped and
+// rebuilt from the snapshot and the journal; after a clean close they are used
+// as they are.
+class MappedStorage extends Storage implements Closeable {
+  private static final long MAGIC = 0x524553544D415050L; // "RESTMAPP"
+
+  // Header slots.
+  private static final int HEADER_MAGIC = 0;
+  private static final int HEADER_COUNT = 1;
+  private static final int HEADER_NEXT_ID = 2;
+
+  // House record layout.
+  private static final int HOUSE_RECORD = 64;
+  private static final int HOUSE_ID = 0;
+  private static final int HOUSE_PRICE = 4;
+  private static final int HOUSE_AREA = 8;
+  private static final int HOUSE_ROOMS = 12;
+  private static final int HOUSE_YEAR = 16;
+  private static final int HOUSE_OWNER = 20; // row of the owner in users.dat
+  private static final int HOUSE_ADDRESS = 24; // code in addresses.dat
+  private static final int HOUSE_FLAGS = 28;
+  private static final int HOUSE_PREVIOUS = 32; // previous house of the same owner, -1 for none
+  private static final int HOUSE_NEXT = 36; // next house of the same owner, -1 for none
+  private static final int HOUSE_LATITUDE = 40; // set when the flags have LOCATED
+  private static final int HOUSE_LONGITUDE = 44;
+
+  private static final int PARKING = 1;
+  private static final int PURCHASED = 2;
+  private static final int AVAILABLE = 4; // unsold and listed by a seller
+  private static final int LOCATED = 8;
+
+  // User record layout.
+  private static final int USER_RECORD = 32;
+  private static final int USER_TYPE = 0;
+  private static final int USER_SALARY = 4;
+  private static final int USER_FLAGS = 8;
+  private static final int USER_FIRST_HOUSE = 12;
+  private static final int USER_LAST_HOUSE = 16;
+
+  private static final int PURCHASED_HOUSE = 1;
+  private static final int DELETED = 2;
+
+  private static final String[] FILES = { "houses.dat", "house-rows.dat", "users.dat", "strings.dat",
+      "addresses.dat" };
+
+  private MappedRecords houses;
+  private MappedRecords houseRows;
+  private MappedRecords userRecords;
+  private DataOutputStream strings;
+  private DataOutputStream addressFile;
+  private File marker;
+  private boolean restored;
+
+  private ArrayList<User> usersByRow = new ArrayList<User>();
+  private HashMap<User, Integer> rowOfUser = new HashMap<User, Integer>();
+  private HashMap<String, Integer> addressCodes = new HashMap<String, Integer>();
+  private ArrayList<String> addressValues = new ArrayList<String>();
+  private IntList sharedAddressCodes = new IntList(); // code in Variables.ADDRESSES per stored code
+
+  public MappedStorage(File directory) throws IOException {
+    Files.createDirectories(directory.toPath());
+    marker = new File(directory, "open.marker");
+    if (marker.exists()) {
+      for (String name : FILES) {
+        Files.deleteIfExists(new File(directory, name).toPath());
+      }
+    }
+    restored = new File(directory, "houses.dat").exists();
+    Files.write(marker.toPath(), new byte[0]);
+    force(directory);
+
+    houses = new MappedRecords(new File(directory, "houses.dat"), HOUSE_RECORD);
+    houseRows = new MappedRecords(new File(directory, "house-rows.dat"), 4);
+    userRecords = new MappedRecords(new File(directory, "users.dat"), USER_RECORD);
+    for (MappedRecords records : new MappedRecords[] { houses, houseRows, userRecords }) {
+      if (records.getHeader(HEADER_MAGIC) == 0) {
+        records.putHeader(HEADER_MAGIC, MAGIC);
+      } else if (records.getHeader(HEADER_MAGIC) != MAGIC) {
+        throw new IOException("Not a listing store: " + directory);
+      }
+    }
+
+    File addressPath = new File(directory, "addresses.dat");
+    if (addressPath.exists()) {
+      try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(addressPath)))) {
+        while (input.available() > 0) {
+          String address = input.readUTF();
+          addressCodes.put(address, addressValues.size());
+          addressValues.add(address);
+          sharedAddressCodes.add(Variables.ADDRESSES.code(address));
+        }
+      }
+    }
+    addressFile = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(addressPath, true)));
+
+    File stringPath = new File(directory, "strings.dat");
+    long userCount = userRecords.getHeader(HEADER_COUNT);
+    if (stringPath.exists()) {
+      try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(stringPath), 1 << 16))) {
+        UserType[] types = UserType.values();
+        for (int row = 0; row < userCount; row++) {
+          User user = new User(input.readUTF(), input.readUTF(), input.readUTF(), input.readUTF(), input.readUTF(),
+              types[userRecords.getInt(row, USER_TYPE)], userRecords.getInt(row, USER_SALARY));
+          int flags = userRecords.getInt(row, USER_FLAGS);
+          if ((flags & DELETED) != 0) {
+            usersByRow.add(null);
+            continue;
+          }
+          user.setHasPurchasedHouse((flags & PURCHASED_HOUSE) != 0);
+          super.addUser(user);
+          usersByRow.add(user);
+          rowOfUser.put(user, row);
+        }
+      }
+    }
+    strings = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stringPath, true)));
+
+    // House IDs continue where the stored ones left off.
+    int nextId = (int) houses.getHeader(HEADER_NEXT_ID);
+    if (Variables.HOUSE_ID.get() < nextId) {
+      Variables.HOUSE_ID.set(nextId);
+    }
+  }
+
+  // Whether the files held the data of a clean close, which then needs no
+  // recovery.
+  public boolean isRestored() {
+    return restored;
+  }
+
+  // Forces a file, or a directory once files were created or deleted in it.
+  private static void force(File file) throws IOException {
+    boolean directory = file.isDirectory();
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        directory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // Some platforms cannot open a directory, they make the change durable on their own.
+      if (!directory) {
+        throw e;
+      }
+    }
+  }
+
+  private int houseCount() {
+    return (int) houses.getHeader(HEADER_COUNT);
+  }
+
+  private int rowOf(int id) {
+    if (id < 0 || id >= houseRows.getHeader(HEADER_COUNT)) {
+      return -1;
+    }
+    return houseRows.getInt(id, 0) - 1;
+  }
+
+  private House materialize(int row) {
+    int flags = houses.getInt(row, HOUSE_FLAGS);
+    House house = new House(houses.getInt(row, HOUSE_ID), houses.getInt(row, HOUSE_PRICE),
+        houses.getFloat(row, HOUSE_AREA), addressValues.get(houses.getInt(row, HOUSE_ADDRESS)),
+        houses.getInt(row, HOUSE_ROOMS), (flags & PARKING) != 0, (flags & PURCHASED) != 0,
+        houses.getInt(row, HOUSE_YEAR), usersByRow.get(houses.getInt(row, HOUSE_OWNER)));
+    if ((flags & LOCATED) != 0) {
+      house.setLocation(houses.getFloat(row, HOUSE_LATITUDE), houses.getFloat(row, HOUSE_LONGITUDE));
+    }
+    return house;
+  }
+
+  private List<House> materializeIds(IntList matches) {
+    matches.sort();
+    List<House> result = new ArrayList<House>(matches.size());
+    for (int i = 0; i < matches.size(); i++) {
+      result.add(materialize(rowOf(matches.get(i))));
+    }
+    return result;
+  }
+
+  public void addUser(User user) {
+    lock.writeLock().lock();
+    try {
+      // The text goes first, a record without its text would not load.
+      writeText(user);
+      strings.flush();
+      appendUser(user);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // The text of all the new users is written out once, before any of their records.
+  public void addAll(List<User> newUsers, List<House> newHouses) {
+    lock.writeLock().lock();
+    try {
+      for (User user : newUsers) {
+        writeText(user);
+      }
+      strings.flush();
+      for (User user : newUsers) {
+        appendUser(user);
+      }
+      addHouses(newHouses);
+      changed(QueryCache.USERS | QueryCache.HOUSES);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void writeText(User user) throws IOException {
+    strings.writeUTF(user.getName());
+    strings.writeUTF(user.getLastName());
+    strings.writeUTF(user.getNationalID());
+    strings.writeUTF(user.getPhoneNumber());
+    strings.writeUTF(user.getAddress());
+  }
+
+  // Called with the write lock held, once the text of the user is written.
+  private void appendUser(User user) throws IOException {
+    int row = (int) userRecords.getHeader(HEADER_COUNT);
+    userRecords.ensureCapacity(row + 1);
+    userRecords.putInt(row, USER_TYPE, ((UserType) user.getUserType()).ordinal());
+    userRecords.putInt(row, USER_SALARY, user.getSalary());
+    userRecords.putInt(row, USER_FLAGS, user.hasPurchasedHouse() ? PURCHASED_HOUSE : 0);
+    userRecords.putInt(row, USER_FIRST_HOUSE, -1);
+    userRecords.putInt(row, USER_LAST_HOUSE, -1);
+    userRecords.putHeader(HEADER_COUNT, row + 1);
+
+    super.addUser(user);
+    usersByRow.add(user);
+    rowOfUser.put(user, row);
+  }
+
+  protected void removeHousesOf(User user) {
+    Integer row = rowOfUser.remove(user);
+    if (row == null) {
+      return;
+    }
+    while (userRecords.getInt(row, USER_FIRST_HOUSE) >= 0) {
+      removeRow(userRecords.getInt(row, USER_FIRST_HOUSE));
+    }
+    userRecords.putInt(row, USER_FLAGS, userRecords.getInt(row, USER_FLAGS) | DELETED);
+    usersByRow.set(row, null);
+  }
+
+  // Appends the house row to the end of its owner's list.
+  private void link(int row, int owner) {
+    int last = userRecords.getInt(owner, USER_LAST_HOUSE);
+    houses.putInt(row, HOUSE_OWNER, owner);
+    houses.putInt(row, HOUSE_PREVIOUS, last);
+    houses.putInt(row, HOUSE_NEXT, -1);
+    if (last < 0) {
+      userRecords.putInt(owner, USER_FIRST_HOUSE, row);
+    } else {
+      houses.putInt(last, HOUSE_NEXT, row);
+    }
+    userRecords.putInt(owner, USER_LAST_HOUSE, row);
+  }
+
+  private void unlink(int row) {
+    int owner = houses.getInt(row, HOUSE_OWNER);
+    int previous = houses.getInt(row, HOUSE_PREVIOUS);
+    int next = houses.getInt(row, HOUSE_NEXT);
+    if (previous < 0) {
+      userRecords.putInt(owner, USER_FIRST_HOUSE, next);
+    } else {
+      houses.putInt(previous, HOUSE_NEXT, next);
+    }
+    if (next < 0) {
+      userRecords.putInt(owner, USER_LAST_HOUSE, previous);
+    } else {
+      houses.putInt(next, HOUSE_PREVIOUS, previous);
+    }
+  }
+
+  public void addHouse(House house) {
+    lock.writeLock().lock();
+    try {
+      Integer owner = rowOfUser.get(house.getOwner());
+      if (owner == null) {
+        return;
+      }
+
+      Integer code = addressCodes.get(house.getAddress());
+      if (code == null) {
+        code = addressValues.size();
+        addressFile.writeUTF(house.getAddress());
+        addressFile.flush();
+        addressCodes.put(house.getAddress(), code);
+        addressValues.add(house.getAddress());
+        sharedAddressCodes.add(house.getAddressCode());
+      }
+
+      int row = houseCount();
+      int id = house.getId();
+      houses.ensureCapacity(row + 1);
+      houses.putInt(row, HOUSE_ID, id);
+      houses.putInt(row, HOUSE_PRICE, house.getPrice());
+      houses.putFloat(row, HOUSE_AREA, house.getArea());
+      houses.putInt(row, HOUSE_ROOMS, house.getNumberOfRooms());
+      houses.putInt(row, HOUSE_YEAR, house.getYearOfConstruction());
+      houses.putInt(row, HOUSE_ADDRESS, code);
+      houses.putFloat(row, HOUSE_LATITUDE, house.getLatitude());
+      houses.putFloat(row, HOUSE_LONGITUDE, house.getLongitude());
+      boolean available = !house.isPurchased() && house.getOwner().getUserType() == UserType.SELLER;
+      houses.putInt(row, HOUSE_FLAGS, (house.hasParking() ? PARKING : 0) | (house.isPurchased() ? PURCHASED : 0)
+          | (available ? AVAILABLE : 0) | (house.hasLocation() ? LOCATED : 0));
+      link(row, owner);
+      houses.putHeader(HEADER_COUNT, row + 1);
+
+      if (id >= houseRows.getHeader(HEADER_COUNT)) {
+        houseRows.ensureCapacity(id + 1);
+        houseRows.putHeader(HEADER_COUNT, id + 1);
+      }
+      houseRows.putInt(id, 0, row + 1);
+      houses.putHeader(HEADER_NEXT_ID, Math.max(houses.getHeader(HEADER_NEXT_ID), id + 1));
+      changed(QueryCache.HOUSES);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // The house records have no sorted indexes to build, so they are simply appended.
+  protected void addHouses(List<House> newHouses) {
+    for (House house : newHouses) {
+      addHouse(house);
+    }
+  }
+
+  public House getHouse(int id) {
+    lock.readLock().lock();
+    try {
+      int row = rowOf(id);
+      return row < 0 ? null : materialize(row);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public House removeHouse(int id) {
+    lock.writeLock().lock();
+    try {
+      int row = rowOf(id);
+      if (row < 0) {
+        return null;
+      }
+      House house = materialize(row);
+      removeRow(row);
+      changed(QueryCache.HOUSES);
+      return house;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Moves the last row into the removed one so the rows stay dense.
+  private void removeRow(int row) {
+    unlink(row);
+    houseRows.putInt(houses.getInt(row, HOUSE_ID), 0, 0);
+
+    int last = houseCount() - 1;
+    if (row != last) {
+      for (int offset = 0; offset < HOUSE_RECORD; offset += 4) {
+        houses.putInt(row, offset, houses.getInt(last, offset));
+      }
+      houseRows.putInt(houses.getInt(row, HOUSE_ID), 0, row + 1);
+
+      // The neighbours and the owner of the moved house point to its new row.
+      int owner = houses.getInt(row, HOUSE_OWNER);
+      int previous = houses.getInt(row, HOUSE_PREVIOUS);
+      int next = houses.getInt(row, HOUSE_NEXT);
+      if (previous < 0) {
+        userRecords.putInt(owner, USER_FIRST_HOUSE, row);
+      } else {
+        houses.putInt(previous, HOUSE_NEXT, row);
+      }
+      if (next < 0) {
+        userRecords.putInt(owner, USER_LAST_HOUSE, row);
+      } else {
+        houses.putInt(next, HOUSE_PREVIOUS, row);
+      }
+    }
+    houses.putHeader(HEADER_COUNT, last);
+  }
+
+  public Collection<House> getHousesOf(User user) {
+    lock.readLock().lock();
+    try {
+      List<House> result = new ArrayList<House>();
+      Integer owner = rowOfUser.get(user);
+      if (owner != null) {
+        for (int row = userRecords.getInt(owner, USER_FIRST_HOUSE); row >= 0; row = houses.getInt(row, HOUSE_NEXT)) {
+          result.add(materialize(row));
+        }
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  protected boolean ownsHouses(User user) {
+    lock.readLock().lock();
+    try {
+      Integer owner = rowOfUser.get(user);
+      return owner != null && userRecords.getInt(owner, USER_FIRST_HOUSE) >= 0;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  protected void transferHouse(House house, User buyer) {
+    lock.writeLock().lock();
+    try {
+      int row = rowOf(house.getId());
+      Integer owner = rowOfUser.get(buyer);
+      if (row < 0 || owner == null) {
+        return;
+      }
+      unlink(row);
+      link(row, owner);
+      houses.putInt(row, HOUSE_FLAGS, (houses.getInt(row, HOUSE_FLAGS) | PURCHASED) & ~AVAILABLE);
+      userRecords.putInt(owner, USER_FLAGS, userRecords.getInt(owner, USER_FLAGS) | PURCHASED_HOUSE);
+      house.changeOwner(buyer);
+      changed(QueryCache.HOUSES);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public List<House> getAvailableHouses(final int maxPrice, int skip, int limit) {
+    lock.readLock().lock();
+    try {
+      IntList rows = ParallelScan.filter(houseCount(), new IntPredicate() {
+        public boolean test(int row) {
+          return houses.getInt(row, HOUSE_PRICE) <= maxPrice && (houses.getInt(row, HOUSE_FLAGS) & AVAILABLE) != 0;
+        }
+      });
+
+      // Matches are packed as (price, ID) so one sort gives the cheapest first.
+      long[] matches = new long[rows.size()];
+      for (int i = 0; i < rows.size(); i++) {
+        int row = rows.get(i);
+        matches[i] = ((long) houses.getInt(row, HOUSE_PRICE) << 32) | (houses.getInt(row, HOUSE_ID) & 0xFFFFFFFFL);
+      }
+      Arrays.sort(matches);
+
+      List<House> result = new ArrayList<House>();
+      for (int i = skip; i < matches.length && result.size() < limit; i++) {
+        result.add(materialize(rowOf((int) matches[i])));
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public List<House> searchHouse(final String searchKey, final String searchValue) {
+    lock.readLock().lock();
+    try {
+      if (searchKey.equals("id")) {
+        IntList matches = new IntList();
+        if (rowOf(Integer.parseInt(searchValue)) >= 0) {
+          matches.add(Integer.parseInt(searchValue));
+        }
+        return materializeIds(matches);
+      }
+
+      IntPredicate predicate = null;
+      if (searchKey.equals("address")) {
+        // The pattern is checked once per distinct address, the answer is kept
+        // by code. Chunks may check the same address twice, the answer is the same.
+        final byte[] matched = new byte[addressValues.size()];
+        predicate = new IntPredicate() {
+          public boolean test(int row) {
+            int code = houses.getInt(row, HOUSE_ADDRESS);
+            if (matched[code] == 0) {
+              matched[code] = AddressIndex.matches(searchValue, addressValues.get(code)) ? (byte) 1 : (byte) 2;
+            }
+            return matched[code] == 1;
+          }
+        };
+      } else if (searchKey.equals("parking")) {
+        final int wanted = Boolean.parseBoolean(searchValue) ? PARKING : 0;
+        predicate = new IntPredicate() {
+          public boolean test(int row) {
+            return (houses.getInt(row, HOUSE_FLAGS) & PARKING) == wanted;
+          }
+        };
+      } else if (searchKey.equals("area")) {
+        int separator = searchValue.indexOf("..");
+        String from = separator < 0 ? searchValue : searchValue.substring(0, separator);
+        String to = separator < 0 ? searchValue : searchValue.substring(separator + 2);
+        final float low = from.isEmpty() ? Float.NEGATIVE_INFINITY : Float.parseFloat(from);
+        final float high = to.isEmpty() ? Float.POSITIVE_INFINITY : Float.parseFloat(to);
+        predicate = new IntPredicate() {
+          public boolean test(int row) {
+            float area = houses.getFloat(row, HOUSE_AREA);
+            return area >= low && area <= high;
+          }
+        };
+      } else {
+        int offset = -1;
+        if (searchKey.equals("price")) {
+          offset = HOUSE_PRICE;
+        } else if (searchKey.equals("rooms")) {
+          offset = HOUSE_ROOMS;
+        } else if (searchKey.equals("construction")) {
+          offset = HOUSE_YEAR;
+        }
+        if (offset >= 0) {
+          final int field = offset;
+          int separator = searchValue.indexOf("..");
+          String from = separator < 0 ? searchValue : searchValue.substring(0, separator);
+          String to = separator < 0 ? searchValue : searchValue.substring(separator + 2);
+          final int low = from.isEmpty() ? Integer.MIN_VALUE : Integer.parseInt(from);
+          final int high = to.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(to);
+          predicate = new IntPredicate() {
+            public boolean test(int row) {
+              int value = houses.getInt(row, field);
+              return value >= low && value <= high;
+            }
+          };
+        }
+      }
+
+      IntList matches = new IntList();
+      if (predicate != null) {
+        IntList rows = ParallelScan.filter(houseCount(), predicate);
+        for (int i = 0; i < rows.size(); i++) {
+          matches.add(houses.getInt(rows.get(i), HOUSE_ID));
+        }
+      }
+      return materializeIds(matches);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // The records are scanned once, only the houses kept by the limit are created.
+  public List<House> queryHouses(final HouseQuery query) {
+    lock.readLock().lock();
+    try {
+      IntList rows = ParallelScan.filter(houseCount(), new IntPredicate() {
+        public boolean test(int row) {
+          int flags = houses.getInt(row, HOUSE_FLAGS);
+          return query.matches(houses.getInt(row, HOUSE_ID), houses.getInt(row, HOUSE_PRICE),
+              houses.getFloat(row, HOUSE_AREA), sharedAddressCodes.get(houses.getInt(row, HOUSE_ADDRESS)),
+              houses.getInt(row, HOUSE_ROOMS), (flags & PARKING) != 0, houses.getInt(row, HOUSE_YEAR),
+              (flags & PURCHASED) != 0);
+        }
+      });
+
+      TopK top = new TopK(query.getLimit());
+      for (int i = 0; i < rows.size(); i++) {
+        int row = rows.get(i);
+        int flags = houses.getInt(row, HOUSE_FLAGS);
+        top.add(query.sortKey(houses.getInt(row, HOUSE_ID), houses.getInt(row, HOUSE_PRICE),
+            houses.getFloat(row, HOUSE_AREA), houses.getInt(row, HOUSE_ROOMS), (flags & PARKING) != 0,
+            houses.getInt(row, HOUSE_YEAR), (flags & PURCHASED) != 0));
+      }
+
+      long[] order = top.sorted();
+      List<House> result = new ArrayList<House>(order.length);
+      for (long entry : order) {
+        result.add(materialize(rowOf((int) entry)));
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // The records are scanned in place, rows without a location or outside the
+  // band of latitudes the radius allows are left out before the distance is
+  // computed.
+  public List<House> searchNear(final double latitude, final double longitude, final double radius, int limit,
+      final HouseQuery filter) {
+    lock.readLock().lock();
+    try {
+      final double band = Math.toDegrees(radius / GeoGrid.EARTH_RADIUS);
+      IntList rows = ParallelScan.filter(houseCount(), new IntPredicate() {
+        public boolean test(int row) {
+          int flags = houses.getInt(row, HOUSE_FLAGS);
+          if ((flags & LOCATED) == 0) {
+            return false;
+          }
+          float rowLatitude = houses.getFloat(row, HOUSE_LATITUDE);
+          return Math.abs(rowLatitude - latitude) <= band
+              && (filter == null || filter.matches(houses.getInt(row, HOUSE_ID), houses.getInt(row, HOUSE_PRICE),
+                  houses.getFloat(row, HOUSE_AREA), sharedAddressCodes.get(houses.getInt(row, HOUSE_ADDRESS)),
+                  houses.getInt(row, HOUSE_ROOMS), (flags & PARKING) != 0, houses.getInt(row, HOUSE_YEAR),
+                  (flags & PURCHASED) != 0))
+              && GeoGrid.distance(latitude, longitude, rowLatitude, houses.getFloat(row, HOUSE_LONGITUDE)) <= radius;
+        }
+      });
+
+      TopK top = new TopK(limit);
+      for (int i = 0; i < rows.size(); i++) {
+        int row = rows.get(i);
+        top.add(GeoGrid.sortKey(GeoGrid.distance(latitude, longitude, houses.getFloat(row, HOUSE_LATITUDE),
+            houses.getFloat(row, HOUSE_LONGITUDE)), houses.getInt(row, HOUSE_ID)));
+      }
+
+      long[] order = top.sorted();
+      List<House> result = new ArrayList<House>(order.length);
+      for (long entry : order) {
+        result.add(materialize(rowOf((int) entry)));
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // Every search is one scan, so the nearest houses are found in one go.
+  public List<House> nearestHouses(double latitude, double longitude, int k, HouseQuery filter) {
+    return searchNear(latitude, longitude, GeoGrid.MAX_DISTANCE, k, filter);
+  }
+
+  // Writes the mapped pages and the appended text out to the disk, after which
+  // the files can be used as they are.
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      strings.close();
+      addressFile.close();
+      houses.close();
+      houseRows.close();
+      userRecords.close();
+      File directory = marker.getParentFile();
+      force(new File(directory, "strings.dat"));
+      force(new File(directory, "addresses.dat"));
+      Files.delete(marker.toPath());
+      force(directory);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+}
+
+// ShardedStorage splits the users and houses over several Storage shards by
+// the hash of their address, each shard with its own indexes and lock, so a
+// change or a search of one address only locks and reads one shard. Searches
+// that name an exact address go to its shard, the others run on every shard
+// side by side and their results are merged in the order one Storage gives.
+//
+// A house and its owner may live in different shards. The links between them
+// are on the User and House objects, which every shard shares, so a purchase
+// across shards checks its rules under this storage's user and house stripes
+// like any other and only moves the house in its own shard's indexes. Serials
+// come from one counter for all shards, so users page in the order they were
+// added. Names and house IDs are not sharded on, so a directory guarded by this
+// storage's lock says where they are and a lookup reads one shard at most.
+//
+// Adding and removing users and houses hold that lock throughout, so lookups
+// by name or ID see a change either all done or not at all. Searches that run
+// on every shard do not take it and may see a user whose houses are already
+// gone.
+class ShardedStorage extends Storage {
+  // A shard reports its changes to the cache of the sharded storage and leaves
+  // the houses of a removed user to it, as they may be in other shards.
+  private class Shard extends Storage {
+    protected long nextSerial() {
+      return serials.incrementAndGet();
+    }
+
+    protected void changed(int dependencies) {
+      ShardedStorage.this.changed(dependencies);
+    }
+
+    protected void removeHousesOf(User user) {
+    }
+  }
+
+  private static final Comparator<User> BY_SERIAL = new Comparator<User>() {
+    public int compare(User a, User b) {
+      return Long.compare(a.getSerial(), b.getSerial());
+    }
+  };
+
+  private static final Comparator<House> BY_ID = new Comparator<House>() {
+    public int compare(House a, House b) {
+      return Integer.compare(a.getId(), b.getId());
+    }
+  };
+
+  private Shard[] shards;
+  private AtomicLong serials = new AtomicLong();
+
+  // The users by full name, in the order they were added, and the shard of
+  // every house ID.
+  private HashMap<String, List<User>> usersByName = new HashMap<String, List<User>>();
+  private IntHashMap<Shard> houseShards = new IntHashMap<Shard>();
+
+  public ShardedStorage(int count) {
+    shards = new Shard[Math.max(1, count)];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new Shard();
+    }
+  }
+
+  private Shard shardOf(String address) {
+    return shards[(address.hashCode() & 0x7FFFFFFF) % shards.length];
+  }
+
+  // One result per shard, computed side by side.
+  private <T> List<T> onEveryShard(final ParallelScan.Chunk<T> task) {
+    return ParallelScan.each(shards.length, task);
+  }
+
+  private static <T> List<T> merge(List<List<T>> parts, Comparator<T> order) {
+    List<T> result = new ArrayList<T>();
+    for (List<T> part : parts) {
+      result.addAll(part);
+    }
+    // Every part is sorted already, which the list sort finds and merges.
+    result.sort(order);
+    return result;
+  }
+
+  // Under this storage's lock, which addImported holds too, so an import sees
+  // every user added before it, and users get their serials in the order of
+  // the directory.
+  public void addUser(User user) {
+    lock.writeLock().lock();
+    try {
+      shardOf(user.getAddress()).addUser(user);
+      String key = fullNameKey(user.getName(), user.getLastName());
+      List<User> users = usersByName.get(key);
+      if (users == null) {
+        users = new ArrayList<User>(1);
+        usersByName.put(key, users);
+      }
+      users.add(user);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // The user goes with their houses in whatever shard they are.
+  public void removeUser(User user) {
+    lock.writeLock().lock();
+    try {
+      String key = fullNameKey(user.getName(), user.getLastName());
+      List<User> users = usersByName.get(key);
+      if (users == null || !users.remove(user)) {
+        return;
+      }
+      if (users.isEmpty()) {
+        usersByName.remove(key);
+      }
+      for (House house : user.getHouses()) {
+        houseShards.remove(house.getId());
+        shardOf(house.getAddress()).removeHouse(house.getId());
+      }
+      shardOf(user.getAddress()).removeUser(user);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // The first added of the users with the name, as one Storage would return.
+  public User getUser(String name, String lastName) {
+    lock.readLock().lock();
+    try {
+      List<User> users = usersByName.get(fullNameKey(name, lastName));
+      return users == null ? null : users.get(0);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public ArrayList<User> getUsers() {
+    List<List<User>> parts = new ArrayList<List<User>>(shards.length);
+    for (Shard shard : shards) {
+      parts.add(shard.getUsers());
+    }
+    return new ArrayList<User>(merge(parts, BY_SERIAL));
+  }
+
+  public List<User> getUsersAfter(final long cursor, final int limit) {
+    List<User> users = merge(onEveryShard(new ParallelScan.Chunk<List<User>>() {
+      public List<User> run(int start, int end) {
+        return shards[start].getUsersAfter(cursor, limit);
+      }
+    }), BY_SERIAL);
+    return users.size() > limit ? new ArrayList<User>(users.subList(0, limit)) : users;
+  }
+
+  // The shard and the directory change under the directory's lock, so a
+  // lookup by ID finds the house as soon as a search of its shard does.
+  public void addHouse(House house) {
+    Shard shard = shardOf(house.getAddress());
+    lock.writeLock().lock();
+    try {
+      shard.addHouse(house);
+      houseShards.put(house.getId(), shard);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // The users are added one by one to keep their order, the houses of each
+  // shard in one go. Each shard links its houses to their owners, so the
+  // houses are then linked again in the order they came in.
+  public void addAll(List<User> newUsers, List<House> newHouses) {
+    lock.writeLock().lock();
+    try {
+      for (User user : newUsers) {
+        addUser(user);
+      }
+      List<List<House>> parts = new ArrayList<List<House>>(shards.length);
+      for (int i = 0; i < shards.length; i++) {
+        parts.add(new ArrayList<House>());
+      }
+      for (House house : newHouses) {
+        parts.get((house.getAddress().hashCode() & 0x7FFFFFFF) % shards.length).add(house);
+      }
+      List<User> none = new ArrayList<User>();
+      for (int i = 0; i < shards.length; i++) {
+        if (!parts.get(i).isEmpty()) {
+          shards[i].addAll(none, parts.get(i));
+        }
+      }
+      for (House house : newHouses) {
+        houseShards.put(house.getId(), shardOf(house.getAddress()));
+        house.getOwner().removeHouse(house.getId());
+        house.getOwner().addHouse(house);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public House getHouse(int id) {
+    Shard shard;
+    lock.readLock().lock();
+    try {
+      shard = houseShards.get(id);
+    } finally {
+      lock.readLock().unlock();
+    }
+    return shard == null ? null : shard.getHouse(id);
+  }
+
+  public House removeHouse(int id) {
+    lock.writeLock().lock();
+    try {
+      Shard shard = houseShards.remove(id);
+      return shard == null ? null : shard.removeHouse(id);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Called by purchase under the stripes of the seller, the buyer and the house.
+  protected void transferHouse(House house, User buyer) {
+    shardOf(house.getAddress()).transferHouse(house, buyer);
+  }
+
+  public List<House> getAvailableHouses(final int maxPrice, int skip, int limit) {
+    final int wanted = (int) Math.min((long) skip + limit, Integer.MAX_VALUE);
+    List<House> houses = merge(onEveryShard(new ParallelScan.Chunk<List<House>>() {
+      public List<House> run(int start, int end) {
+        return shards[start].getAvailableHouses(maxPrice, 0, wanted);
+      }
+    }), byKey(HouseField.PRICE));
+    return new ArrayList<House>(houses.subList(Math.min(skip, houses.size()), Math.min(wanted, houses.size())));
+  }
+
+  public List<User> searchUser(final String searchKey, final String searchValue) {
+    if (searchKey.equals("address")) {
+      return shardOf(searchValue).searchUser(searchKey, searchValue);
+    }
+    return merge(onEveryShard(new ParallelScan.Chunk<List<User>>() {
+      public List<User> run(int start, int end) {
+        return shards[start].searchUser(searchKey, searchValue);
+      }
+    }), BY_SERIAL);
+  }
+
+  public List<House> searchHouse(final String searchKey, final String searchValue) {
+    if (searchKey.equals("address") && searchValue.indexOf('*') < 0) {
+      return shardOf(searchValue).searchHouse(searchKey, searchValue);
+    }
+    if (searchKey.equals("id")) {
+      House house = getHouse(Integer.parseInt(searchValue));
+      List<House> result = new ArrayList<House>();
+      if (house != null) {
+        result.add(house);
+      }
+      return result;
+    }
+
+    // Range searches come in the order of their index, the others by ID.
+    Comparator<House> order = BY_ID;
+    if (searchKey.equals("price") || searchKey.equals("area") || searchKey.equals("rooms")
+        || searchKey.equals("construction")) {
+      order = byKey(HouseField.valueOf(searchKey.equals("construction") ? "CONSTRUCTION" : searchKey.toUpperCase()));
+    }
+    return merge(onEveryShard(new ParallelScan.Chunk<List<House>>() {
+      public List<House> run(int start, int end) {
+        return shards[start].searchHouse(searchKey, searchValue);
+      }
+    }), order);
+  }
+
+  public List<House> queryHouses(final HouseQuery query) {
+    // Only the shards of the exact addresses every OR group names can match.
+    final List<Shard> targets = new ArrayList<Shard>();
+    for (List<HouseQuery.Condition> group : query.getGroups()) {
+      Shard shard = null;
+      for (HouseQuery.Condition condition : group) {
+        if (condition.field == HouseField.ADDRESS && !condition.negated && condition.pattern.indexOf('*') < 0) {
+          shard = shardOf(condition.pattern);
+          break;
+        }
+      }
+      if (shard == null) {
+        targets.clear();
+        targets.addAll(Arrays.asList(shards));
+        break;
+      }
+      if (!targets.contains(shard)) {
+        targets.add(shard);
+      }
+    }
+
+    List<House> houses = merge(ParallelScan.each(targets.size(), new ParallelScan.Chunk<List<House>>() {
+      public List<House> run(int start, int end) {
+        return targets.get(start).queryHouses(query);
+      }
+    }), new Comparator<House>() {
+      public int compare(House a, House b) {
+        return Long.compare(query.sortKey(a), query.sortKey(b));
+      }
+    });
+    return houses.size() > query.getLimit() ? new ArrayList<House>(houses.subList(0, query.getLimit())) : houses;
+  }
+
+  // A house's shard follows its address, not its location, so every shard is
+  // asked and the nearest of their answers are kept.
+  public List<House> searchNear(final double latitude, final double longitude, final double radius, final int limit,
+      final HouseQuery filter) {
+    return nearest(latitude, longitude, limit, onEveryShard(new ParallelScan.Chunk<List<House>>() {
+      public List<House> run(int start, int end) {
+        return shards[start].searchNear(latitude, longitude, radius, limit, filter);
+      }
+    }));
+  }
+
+  // The k nearest of all are among the k nearest of each shard.
+  public List<House> nearestHouses(final double latitude, final double longitude, final int k,
+      final HouseQuery filter) {
+    return nearest(latitude, longitude, k, onEveryShard(new ParallelScan.Chunk<List<House>>() {
+      public List<House> run(int start, int end) {
+        return shards[start].nearestHouses(latitude, longitude, k, filter);
+      }
+    }));
+  }
+
+  private static List<House> nearest(final double latitude, final double longitude, int limit,
+      List<List<House>> parts) {
+    List<House> houses = merge(parts, new Comparator<House>() {
+      public int compare(House a, House b) {
+        return Long.compare(GeoGrid.sortKey(latitude, longitude, a), GeoGrid.sortKey(latitude, longitude, b));
+      }
+    });
+    return houses.size() > limit ? new ArrayList<House>(houses.subList(0, limit)) : houses;
+  }
+
+  // Orders houses by a field and then by ID, as the sorted indexes do.
+  private static Comparator<House> byKey(final HouseField field) {
+    return new Comparator<House>() {
+      public int compare(House a, House b) {
+        int order = Integer.compare(HouseQuery.key(field, a), HouseQuery.key(field, b));
+        return order != 0 ? order : Integer.compare(a.getId(), b.getId());
+      }
+    };
+  }
+}
+
+// HouseQuery is a parsed "query" command: conditions on house fields joined by
+// AND and OR, with AND binding tighter, and an optional ORDER BY and LIMIT.
+//   price<=500000 AND rooms>=3 AND parking=true ORDER BY price DESC LIMIT 10
+//
+// The condition is kept as OR-ed groups of AND-ed conditions, so a storage can
+// read each group from its most selective index and check the rest of the
+// query on those candidates only. Results are ordered by the ORDER BY field and
+// then by ID, and the first LIMIT are kept in a TopK instead of sorting all.
+class HouseQuery {
+  // One "<field><operator><value>" condition. Every field other than the
+  // address is compared as an int key, the same key the sorted indexes use, so
+  // any operator becomes the inclusive range [low, high], or everything outside
+  // it for "!=".
+  static class Condition {
+    HouseField field;
+    int low = Integer.MIN_VALUE;
+    int high = Integer.MAX_VALUE;
+    boolean negated;
+
+    String pattern; // address pattern, may contain "*" wildcards
+    private int exactAddress = -1; // code of a pattern without wildcards
+
+    // Per address code: 0 not checked, 1 matches, 2 does not. Parallel scans
+    // share it, a lost update only means an address is checked again.
+    private volatile byte[] matched = new byte[0];
+
+    public boolean test(int key) {
+      return (key >= low && key <= high) != negated;
+    }
+
+    public boolean testAddress(int address) {
+      if (pattern.indexOf('*') < 0) {
+        if (exactAddress < 0) {
+          // A saved search may name an address no house had when it was parsed.
+          exactAddress = Variables.ADDRESSES.lookup(pattern);
+        }
+        return (address == exactAddress) != negated;
+      }
+      byte[] known = matched;
+      if (address >= known.length) {
+        known = Arrays.copyOf(known, Math.max(address + 1, known.length * 2));
+        matched = known;
+      }
+      if (known[address] == 0) {
+        known[address] = AddressIndex.matches(pattern, Variables.ADDRESSES.value(address)) ? (byte) 1 : (byte) 2;
+      }
+      return (known[address] == 1) != negated;
+    }
+  }
+
+  private List<List<Condition>> groups = new ArrayList<List<Condition>>();
+  private HouseField orderBy = HouseField.ID;
+  private boolean descending;
+  private int limit = Integer.MAX_VALUE;
+
+  public List<List<Condition>> getGroups() {
+    return groups;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  // Parses the query from its tokens, throws IllegalArgumentException with a
+  // message for the user when they are not a valid query.
+  public static HouseQuery parse(String[] tokens, int start) {
+    HouseQuery query = new HouseQuery();
+    List<Condition> group = new ArrayList<Condition>();
+    boolean expectCondition = true;
+    int i = start;
+
+    for (; i < tokens.length; i++) {
+      String token = tokens[i];
+      if (token.equalsIgnoreCase("ORDER") || token.equalsIgnoreCase("LIMIT")) {
+        break;
+      }
+      if (token.equalsIgnoreCase("AND") || token.equalsIgnoreCase("OR")) {
+        if (expectCondition) {
+          throw new IllegalArgumentException("Expected a condition before " + token);
+        }
+        if (token.equalsIgnoreCase("OR")) {
+          query.groups.add(group);
+          group = new ArrayList<Condition>();
+        }
+        expectCondition = true;
+        continue;
+      }
+      if (!expectCondition) {
+        throw new IllegalArgumentException("Expected AND or OR before " + token);
+      }
+      addCondition(group, parseCondition(token));
+      expectCondition = false;
+    }
+    if (expectCondition) {
+      throw new IllegalArgumentException("Expected a condition");
+    }
+    query.groups.add(group);
+
+    while (i < tokens.length) {
+      String token = tokens[i++];
+      if (token.equalsIgnoreCase("ORDER") && i + 1 < tokens.length && tokens[i].equalsIgnoreCase("BY")) {
+        query.orderBy = field(tokens[i + 1]);
+        if (query.orderBy == HouseField.ADDRESS) {
+          throw new IllegalArgumentException("Can not order by address");
+        }
+        i += 2;
+        if (i < tokens.length && (tokens[i].equalsIgnoreCase("ASC") || tokens[i].equalsIgnoreCase("DESC"))) {
+          query.descending = tokens[i++].equalsIgnoreCase("DESC");
+        }
+      } else if (token.equalsIgnoreCase("LIMIT") && i < tokens.length) {
+        query.limit = Integer.parseInt(tokens[i++]);
+        if (query.limit <= 0) {
+          throw new IllegalArgumentException("The limit must be positive");
+        }
+      } else {
+        throw new IllegalArgumentException("Unexpected " + token);
+      }
+    }
+    return query;
+  }
+
+  // Parses the conditions that filter a search near a point. Its results are
+  // ordered by distance, so ORDER BY and LIMIT have no place in them.
+  public static HouseQuery parseFilter(String[] tokens, int start) {
+    HouseQuery query = parse(tokens, start);
+    if (query.orderBy != HouseField.ID || query.descending || query.limit != Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Houses near a point are ordered by distance, without ORDER BY or LIMIT");
+    }
+    return query;
+  }
+
+  // Ranges on the same field are merged, so "price>=a AND price<=b" is read
+  // from the index as the one range it is and not as two halves of it.
+  private static void addCondition(List<Condition> group, Condition condition) {
+    if (condition.field != HouseField.ADDRESS && !condition.negated) {
+      for (Condition other : group) {
+        if (other.field == condition.field && !other.negated) {
+          other.low = Math.max(other.low, condition.low);
+          other.high = Math.min(other.high, condition.high);
+          return;
+        }
+      }
+    }
+    group.add(condition);
+  }
+
+  private static HouseField field(String name) {
+    for (HouseField field : HouseField.values()) {
+      if (field.name().equalsIgnoreCase(name)) {
+        return field;
+      }
+    }
+    throw new IllegalArgumentException("Unknown field " + name);
+  }
+
+  private static Condition parseCondition(String token) {
+    int position = 0;
+    while (position < token.length() && "=!<>".indexOf(token.charAt(position)) < 0) {
+      position++;
+    }
+    int end = position;
+    while (end < token.length() && "=!<>".indexOf(token.charAt(end)) >= 0) {
+      end++;
+    }
+    String operator = token.substring(position, end);
+    String value = token.substring(end);
+    if (position == 0 || value.isEmpty()) {
+      throw new IllegalArgumentException("Invalid condition " + token);
+    }
+
+    Condition condition = new Condition();
+    condition.field = field(token.substring(0, position));
+
+    if (condition.field == HouseField.ADDRESS) {
+      if (!operator.equals("=") && !operator.equals("!=")) {
+        throw new IllegalArgumentException("Addresses only compare with = and !=");
+      }
+      condition.pattern = value;
+      condition.exactAddress = Variables.ADDRESSES.lookup(value);
+      condition.negated = operator.equals("!=");
+      return condition;
+    }
+
+    int key;
+    if (condition.field == HouseField.PARKING || condition.field == HouseField.PURCHASED) {
+      if (!operator.equals("=") && !operator.equals("!=")) {
+        throw new IllegalArgumentException(condition.field.name().toLowerCase() + " only compares with = and !=");
+      }
+      key = Boolean.parseBoolean(value) ? 1 : 0;
+    } else if (condition.field == HouseField.AREA) {
+      key = SortedIndex.floatKey(Float.parseFloat(value));
+    } else {
+      key = Integer.parseInt(value);
+    }
+
+    switch (operator) {
+      case "=":
+        condition.low = key;
+        condition.high = key;
+        break;
+      case "!=":
+        condition.low = key;
+        condition.high = key;
+        condition.negated = true;
+        break;
+      case "<":
+        condition.high = key - 1;
+        break;
+      case "<=":
+        condition.high = key;
+        break;
+      case ">":
+        condition.low = key + 1;
+        break;
+      case ">=":
+        condition.low = key;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown operator " + operator);
+    }
+    // "< MIN_VALUE" and "> MAX_VALUE" would wrap around, they match nothing.
+    if ((operator.equals("<") && key == Integer.MIN_VALUE) || (operator.equals(">") && key == Integer.MAX_VALUE)) {
+      condition.low = 1;
+      condition.high = 0;
+    }
+    return condition;
+  }
+
+  private static int key(HouseField field, int id, int price, float area, int rooms, boolean parking, int year,
+      boolean purchased) {
+    switch (field) {
+      case ID:
+        return id;
+      case PRICE:
+        return price;
+      case AREA:
+        return SortedIndex.floatKey(area);
+      case ROOMS:
+        return rooms;
+      case PARKING:
+        return parking ? 1 : 0;
+      case CONSTRUCTION:
+        return year;
+      default:
+        return purchased ? 1 : 0;
+    }
+  }
+
+  // Whether a house with these fields matches, the address is its code in
+  // Variables.ADDRESSES. Storages that keep no House objects call it directly.
+  public boolean matches(int id, int price, float area, int address, int rooms, boolean parking, int year,
+      boolean purchased) {
+    for (int i = 0; i < groups.size(); i++) {
+      List<Condition> group = groups.get(i);
+      boolean all = true;
+      for (int j = 0; j < group.size() && all; j++) {
+        Condition condition = group.get(j);
+        if (condition.field == HouseField.ADDRESS) {
+          all = condition.testAddress(address);
+        } else {
+          all = condition.test(key(condition.field, id, price, area, rooms, parking, year, purchased));
+        }
+      }
+      if (all) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public boolean matches(House house) {
+    return matches(house.getId(), house.getPrice(), house.getArea(), house.getAddressCode(),
+        house.getNumberOfRooms(), house.hasParking(), house.getYearOfConstruction(), house.isPurchased());
+  }
+
+  // The house's key for a field other than the address.
+  static int key(HouseField field, House house) {
+    return key(field, house.getId(), house.getPrice(), house.getArea(), house.getNumberOfRooms(), house.hasParking(),
+        house.getYearOfConstruction(), house.isPurchased());
+  }
+
+  // The query a "search_house <key> <value>" runs, for searches that are kept.
+  public static HouseQuery forSearch(String searchKey, String searchValue) {
+    String field = searchKey.toLowerCase();
+    List<String> tokens = new ArrayList<String>();
+    int separator = searchValue.indexOf("..");
+    if (separator >= 0 && !field.equals("address")) {
+      String from = searchValue.substring(0, separator);
+      String to = searchValue.substring(separator + 2);
+      if (!from.isEmpty()) {
+        tokens.add(field + ">=" + from);
+      }
+      if (!to.isEmpty()) {
+        if (!tokens.isEmpty()) {
+          tokens.add("AND");
+        }
+        tokens.add(field + "<=" + to);
+      }
+    } else {
+      tokens.add(field + "=" + searchValue);
+    }
+    return parse(tokens.toArray(new String[tokens.size()]), 0);
+  }
+
+  // The house's place in the result order packed with its ID, the lower ID
+  // first on ties. A descending order flips the bits of the key.
+  public long sortKey(int id, int price, float area, int rooms, boolean parking, int year, boolean purchased) {
+    int key = key(orderBy, id, price, area, rooms, parking, year, purchased);
+    return ((long) (descending ? ~key : key) << 32) | (id & 0xFFFFFFFFL);
+  }
+
+  public long sortKey(House house) {
+    return sortKey(house.getId(), house.getPrice(), house.getArea(), house.getNumberOfRooms(), house.hasParking(),
+        house.getYearOfConstruction(), house.isPurchased());
+  }
+}
+
+// Command class is used to represent a command that the user enters.
+// It contains the command type and the arguments that the user entered.
+// Arguments are separated by spaces, an argument wrapped in double quotes may
+// contain spaces itself, e.g. add_house ROOT A B 100 80 "North Tehran" 2 true 2001
+class Command {
+  // Command types grouped by the length of their name, so the type of a command
+  // is found without creating strings or exceptions.
+  private static final CommandType[][] TYPES_BY_LENGTH = buildLookup();
+
+  private String command;
+  private CommandType commandType;
+  private String[] arguments;
+
+  public Command(String command) {
+    this.command = command;
+
+    // bounds[0] holds the number of tokens, followed by a (start, end) pair per token.
+    int[] bounds = tokenize(command);
+    int tokens = bounds[0];
+    this.commandType = tokens == 0 ? CommandType.NOT_FOUND : lookup(command, bounds[1], bounds[2]);
+
+    // If the command is not found, the arguments are set to null.
+    if (this.commandType == CommandType.NOT_FOUND) {
+      this.arguments = null;
+    } else {
+      this.arguments = new String[tokens];
+      this.arguments[0] = this.commandType.toString();
+      for (int i = 1; i < tokens; i++) {
+        this.arguments[i] = command.substring(bounds[2 * i + 1], bounds[2 * i + 2]);
+      }
+    }
+  }
+
+  private static CommandType[][] buildLookup() {
+    int longest = 0;
+    for (CommandType type : CommandType.values()) {
+      longest = Math.max(longest, type.name().length());
+    }
+
+    CommandType[][] lookup = new CommandType[longest + 1][0];
+    for (CommandType type : CommandType.values()) {
+      if (type == CommandType.NOT_FOUND) {
+        continue;
+      }
+      int length = type.name().length();
+      lookup[length] = Arrays.copyOf(lookup[length], lookup[length].length + 1);
+      lookup[length][lookup[length].length - 1] = type;
+    }
+    return lookup;
+  }
+
+  // Finds the command type named by command[start, end), ignoring case.
+  private static CommandType lookup(String command, int start, int end) {
+    int length = end - start;
+    if (length >= TYPES_BY_LENGTH.length) {
+      return CommandType.NOT_FOUND;
+    }
+    for (CommandType type : TYPES_BY_LENGTH[length]) {
+      if (command.regionMatches(true, start, type.name(), 0, length)) {
+        return type;
+      }
+    }
+    return CommandType.NOT_FOUND;
+  }
+
+  // Splits the command in a single pass. Runs of spaces separate tokens and a
+  // token starting with a double quote lasts until the closing quote.
+  private static int[] tokenize(String command) {
+    int[] bounds = new int[1 + 2 * 12];
+    int tokens = 0;
+    int length = command.length();
+    int i = 0;
+
+    while (i < length) {
+      while (i < length && command.charAt(i) == ' ') {
+        i++;
+      }
+      if (i == length) {
+        break;
+      }
+
+      int start;
+      int end;
+      if (command.charAt(i) == '"') {
+        start = i + 1;
+        end = command.indexOf('"', start);
+        if (end < 0) {
+          end = length;
+        }
+        i = end + 1;
+      } else {
+        start = i;
+        while (i < length && command.charAt(i) != ' ') {
+          i++;
+        }
+        end = i;
+      }
+
+      if (1 + 2 * tokens + 2 > bounds.length) {
+        bounds = Arrays.copyOf(bounds, bounds.length * 2);
+      }
+      bounds[1 + 2 * tokens] = start;
+      bounds[2 + 2 * tokens] = end;
+      tokens++;
+    }
+
+    bounds[0] = tokens;
+    return bounds;
+  }
+
+  public String getCommand() {
+    return command;
+  }
+
+  public String[] getArguments() {
+    return arguments;
+  }
+
+  public CommandType getCommandType() {
+    return commandType;
+  }
+}
+
+// Output is the sink all command results are written to. It buffers writes and
+// only flushes when asked to, so batch runs do not pay for a console flush per
+// line. Colors are left out when the output is not read by a person.
+class Output {
+  private static final String GREEN = "\033[32m";
+  private static final String RED = "\033[31m";
+  private static final String RESET = "\033[0m";
+
+  private PrintWriter writer;
+  private boolean colors;
+  private char[] buffer = new char[256];
+
+  public Output(OutputStream stream, boolean colors) {
+    this.writer = new PrintWriter(
+        new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16), false);
+    this.colors = colors;
+  }
+
+  public void success(String message) {
+    if (colors) {
+      writer.println(GREEN + message + RESET);
+    } else {
+      writer.println(message);
+    }
+  }
+
+  public void error(String message) {
+    if (colors) {
+      writer.println(RED + message + RESET);
+    } else {
+      writer.println(message);
+    }
+  }
+
+  // Writes the message as it is, without color or a line break.
+  public void print(String message) {
+    writer.print(message);
+  }
+
+  public void println(String message) {
+    writer.println(message);
+  }
+
+  // Writes the builder's content as one line without turning it into a String.
+  public void success(StringBuilder line) {
+    success(line, 0, line.length());
+  }
+
+  // Writes text[start, end) as one line.
+  public void success(StringBuilder text, int start, int end) {
+    if (colors) {
+      writer.write(GREEN);
+    }
+    int length = end - start;
+    if (buffer.length < length) {
+      buffer = new char[Math.max(length, buffer.length * 2)];
+    }
+    text.getChars(start, end, buffer, 0);
+    writer.write(buffer, 0, length);
+    if (colors) {
+      writer.write(RESET);
+    }
+    writer.println();
+  }
+
+  public void flush() {
+    writer.flush();
+  }
+}
+
+class CommandDispatcher {
+  private Storage storage;
+  private Output out;
+  private Persistence persistence;
+  private CommandMetrics metrics;
+  private SlowCommandLog slowLog;
+  private ChangeLog changes;
+  private SavedSearches searches;
+  private MarketStats market;
+  private CommandTrace trace = new CommandTrace();
+  private int rows; // rows returned by the current command, -1 for none
+  private boolean applied; // whether the current mutation changed the storage
+
+  public CommandDispatcher(Storage storage, Output out) {
+    this.storage = storage;
+    this.out = out;
+  }
+
+  // Once set, every mutating command is journaled after it has been applied.
+  public void setPersistence(Persistence persistence) {
+    this.persistence = persistence;
+  }
+
+  // Once set, every dispatched command is recorded in the metrics.
+  public void setMetrics(CommandMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  // Once set, the commands slower than its threshold are written to the log
+  // with the time of each phase.
+  public void setSlowLog(SlowCommandLog slowLog) {
+    this.slowLog = slowLog;
+  }
+
+  // Once set, every change made by a command is appended to it as an event.
+  public void setChangeLog(ChangeLog changes) {
+    this.changes = changes;
+  }
+
+  // Once set, customers can keep searches in it and the changes keep their
+  // new matches up to date.
+  public void setSavedSearches(SavedSearches searches) {
+    this.searches = searches;
+  }
+
+  // Once set, the changes keep its totals up to date for the market command.
+  public void setMarketStats(MarketStats market) {
+    this.market = market;
+  }
+
+  private void publish(ChangeKind kind, User user, House house, User buyer) {
+    if (changes == null && searches == null && market == null) {
+      return;
+    }
+    ChangeEvent event = new ChangeEvent(kind, user, house, buyer);
+    if (changes != null) {
+      changes.append(event);
+    }
+    if (searches != null) {
+      searches.changed(event);
+    }
+    if (market != null) {
+      market.changed(event);
+    }
+  }
+
+  // Parses and dispatches a command line, so the slow command log sees the
+  // parsing time too.
+  public void dispatch(String line) {
+    if (slowLog == null) {
+      dispatch(new Command(line), 0);
+      return;
+    }
+    long start = System.nanoTime();
+    Command command = new Command(line);
+    dispatch(command, System.nanoTime() - start);
+  }
+
+  public void dispatch(Command command) {
+    dispatch(command, 0);
+  }
+
+  private void dispatch(Command command, long parseNanos) {
+    CommandMetrics metrics = this.metrics;
+    SlowCommandLog slowLog = this.slowLog;
+    rows = -1;
+    if (metrics == null && slowLog == null) {
+      apply(command);
+      return;
+    }
+
+    long allocated = metrics == null ? -1 : metrics.allocatedBytes();
+    long start = System.nanoTime();
+    if (slowLog != null) {
+      trace.begin(parseNanos, start);
+    }
+    try {
+      apply(command);
+    } finally {
+      long end = System.nanoTime();
+      long nanos = end - start;
+      if (slowLog != null) {
+        trace.end(end);
+      }
+      if (metrics != null) {
+        metrics.record(command.getCommandType(), nanos, rows,
+            allocated < 0 ? -1 : metrics.allocatedBytes() - allocated);
+      }
+      if (slowLog != null) {
+        slowLog.record(command, parseNanos + nanos, rows, trace);
+      }
+    }
+  }
+
+  private void apply(Command command) {
+    if (!command.getCommandType().isMutation()) {
+      this.execute(command);
+      return;
+    }
+
+    // A mutation holds the stripes of the users it touches from the first check
+    // to the journal write, so conflicting commands are applied and journaled in
+    // the same order.
+    List<ReentrantLock> locks = storage.lockUsers(involvedUsers(command));
+    if (persistence != null) {
+      persistence.beginMutation(command);
+    }
+    try {
+      applied = false;
+      this.execute(command);
+      // A command that was refused changed nothing, so it is not journaled.
+      if (persistence != null && applied) {
+        CommandTrace.enter(Phase.WRITE);
+        persistence.record(command);
+      }
+    } catch (IOException e) {
+      out.error("Could not write the journal: " + e.getMessage());
+    } finally {
+      if (persistence != null) {
+        persistence.endMutation(command);
+      }
+      Storage.unlock(locks);
+    }
+
+    if (persistence != null) {
+      try {
+        persistence.snapshotIfDue();
+      } catch (IOException e) {
+        out.error("Could not write the snapshot: " + e.getMessage());
+      }
+    }
+  }
+
+  // The (name, last name) pairs of the users a mutating command reads or changes.
+  private static String[] involvedUsers(Command command) {
+    String[] arguments = command.getArguments();
+    int[] positions;
+    switch (command.getCommandType()) {
+      case ADD_USER:
+        positions = new int[] { 3, 4 };
+        break;
+      case PURCHASE:
+        positions = new int[] { 2, 3, 5, 6 };
+        break;
+      default:
+        positions = new int[] { 2, 3 };
+        break;
+    }
+
+    String[] names = new String[positions.length];
+    for (int i = 0; i < positions.length; i++) {
+      if (positions[i] >= arguments.length) {
+        return new String[0];
+      }
+      names[i] = arguments[positions[i]];
+    }
+    return names;
+  }
+
+  private void execute(Command command) {
+    switch (command.getCommandType()) {
+      case HELP:
+        this.help();
+        break;
+      case ADD_USER:
+        this.addUser(command.getArguments());
+        break;
+      case REMOVE_USER:
+        this.removeUser(command.getArguments());
+        break;
+      case ADD_HOUSE:
+        this.addHouse(command.getArguments());
+        break;
+      case LIST_USERS:
+        this.listUsers(command.getArguments());
+        break;
+      case REMOVE_HOUSE:
+        this.removeHouse(command.getArguments());
+        break;
+      case OPTIONS:
+        this.options(command.getArguments());
+        break;
+      case REPORT:
+        this.report(command.getArguments());
+        break;
+      case PURCHASE:
+        this.purchase(command.getArguments());
+        break;
+      case SEARCH_HOUSE:
+        this.searchHouse(command.getArguments());
+        break;
+      case QUERY:
+        this.query(command.getArguments());
+        break;
+      case SEARCH_USER:
+        this.searchUser(command.getArguments());
+        break;
+      case FLUSH:
+        this.out.flush();
+        break;
+      case CACHE:
+        this.cache();
+        break;
+      case IMPORT:
+        this.importData(command.getArguments());
+        break;
+      case EXPORT:
+        this.exportData(command.getArguments());
+        break;
+      case STATS:
+        this.stats();
+        break;
+      case SUBSCRIBE:
+        this.subscribe(command.getArguments());
+        break;
+      case WATCH:
+        this.watch(command.getArguments());
+        break;
+      case UNWATCH:
+        this.unwatch(command.getArguments());
+        break;
+      case MATCHES:
+        this.matches(command.getArguments());
+        break;
+      case MARKET:
+        this.market(command.getArguments());
+        break;
+      default:
+        out.error("Command not found");
+        break;
+    }
+  }
+
+  // Reads through the storage's query cache when it has one.
+  private <T> T cached(String key, int dependencies, QueryCache.Lookup<T> lookup) {
+    QueryCache cache = storage.getCache();
+    return cache == null ? lookup.compute() : cache.get(key, dependencies, lookup);
+  }
+
+  // CACHE
+  private void cache() {
+    QueryCache cache = storage.getCache();
+    if (cache == null) {
+      out.error("The query cache is disabled");
+      return;
+    }
+    out.success("Query cache:");
+    out.success("  entries: " + cache.size() + " of " + cache.getCapacity());
+    out.success("  hits: " + cache.getHits());
+    out.success("  misses: " + cache.getMisses());
+    out.success("  evictions: " + cache.getEvictions());
+    out.success("  invalidations: " + cache.getInvalidations());
+  }
+
+  // STATS
+  private void stats() {
+    if (metrics == null) {
+      out.error("The command metrics are disabled");
+      return;
+    }
+    for (String line : metrics.format()) {
+      out.success(line);
+    }
+  }
+
+  // SUBSCRIBE <from sequence> <!limit>
+  //
+  // Prints the change events from the sequence on, at most limit of them (1000
+  // by default), and then the sequence to ask for next. A reader starts from 0
+  // and keeps asking for the next sequence, at its own pace.
+  private void subscribe(String[] arguments) {
+    if (changes == null) {
+      out.error("The change events are disabled");
+      return;
+    }
+    if (arguments.length < 2) {
+      out.error("The sequence to start from is missing");
+      return;
+    }
+
+    long from;
+    int limit;
+    try {
+      from = Long.parseLong(arguments[1]);
+      limit = arguments.length > 2 ? Integer.parseInt(arguments[2]) : 1000;
+    } catch (NumberFormatException e) {
+      out.error("Invalid sequence or limit");
+      return;
+    }
+    if (from < 0 || limit <= 0) {
+      out.error("The sequence must not be negative and the limit must be positive");
+      return;
+    }
+    if (from > changes.getNext()) {
+      out.error("There is no event " + from + " yet, the next one is " + changes.getNext());
+      return;
+    }
+
+    CommandTrace.enter(Phase.LOOKUP);
+    List<ChangeEvent> events = changes.read(from, limit);
+    if (events == null) {
+      out.error("The events before " + changes.getOldest() + " are no longer kept, start over from a report");
+      return;
+    }
+    rows = events.size();
+
+    CommandTrace.enter(Phase.FORMAT);
+    Lines lines = new Lines();
+    for (ChangeEvent event : events) {
+      event.appendTo(lines.text);
+      lines.endLine();
+    }
+    CommandTrace.enter(Phase.WRITE);
+    lines.writeTo(out);
+    out.success("next " + (from + events.size()));
+  }
+
+  // WATCH <name> <last name> options
+  // WATCH <name> <last name> <search key> <search value>
+  //
+  // Keeps the search for the customer, whose matches among the houses added
+  // from now on are then shown by MATCHES. "options" keeps the houses the
+  // customer can afford, a search key and value what search_house finds.
+  private void watch(String[] arguments) {
+    if (searches == null) {
+      out.error("Saved searches are disabled");
+      return;
+    }
+    User customer = customer(arguments);
+    if (customer == null) {
+      return;
+    }
+
+    int id;
+    if (arguments.length == 4 && arguments[3].equalsIgnoreCase("options")) {
+      id = searches.addOptions(customer);
+    } else if (arguments.length == 5) {
+      try {
+        id = searches.addSearch(customer, arguments[3], arguments[4]);
+      } catch (NumberFormatException e) {
+        out.error("Invalid number in search");
+        return;
+      } catch (IllegalArgumentException e) {
+        out.error(e.getMessage());
+        return;
+      }
+    } else {
+      out.error("Give options or a search key and value");
+      return;
+    }
+    out.success("Watching as search " + id);
+  }
+
+  // UNWATCH <name> <last name> <search ID>
+  private void unwatch(String[] arguments) {
+    if (searches == null) {
+      out.error("Saved searches are disabled");
+      return;
+    }
+    User customer = customer(arguments);
+    if (customer == null) {
+      return;
+    }
+    int id;
+    try {
+      id = arguments.length < 4 ? -1 : Integer.parseInt(arguments[3]);
+    } catch (NumberFormatException e) {
+      out.error("Invalid search ID");
+      return;
+    }
+    if (!searches.remove(customer, id)) {
+      out.error("Search not found!");
+      return;
+    }
+    out.success("Search removed");
+  }
+
+  // MATCHES <name> <last name>
+  //
+  // Shows the houses that matched the customer's searches since the last time.
+  private void matches(String[] arguments) {
+    if (searches == null) {
+      out.error("Saved searches are disabled");
+      return;
+    }
+    User customer = customer(arguments);
+    if (customer == null) {
+      return;
+    }
+
+    CommandTrace.enter(Phase.LOOKUP);
+    LinkedHashMap<SavedSearches.Search, List<House>> matches = searches.take(customer);
+    rows = 0;
+    if (matches.isEmpty()) {
+      out.success("No new matches");
+      return;
+    }
+    for (Map.Entry<SavedSearches.Search, List<House>> entry : matches.entrySet()) {
+      // The houses are read again, as a storage without House objects kept
+      // copies of them as they were when they matched.
+      List<House> houses = new ArrayList<House>(entry.getValue().size());
+      for (House house : entry.getValue()) {
+        House current = storage.getHouse(house.getId());
+        if (current != null) {
+          houses.add(current);
+        }
+      }
+      rows += houses.size();
+      printHouses("Search " + entry.getKey().getId() + " (" + entry.getKey().getDescription() + "):", houses);
+    }
+  }
+
+  // MARKET <!address>
+  //
+  // Shows the number of houses, unsold houses, price quantiles, price per area
+  // and average age of every address, or only of the given one.
+  private void market(String[] arguments) {
+    if (market == null) {
+      out.error("The market statistics are disabled");
+      return;
+    }
+    CommandTrace.enter(Phase.LOOKUP);
+    List<MarketStats.Group> groups = market.snapshot(arguments.length > 1 ? arguments[1] : null);
+    rows = groups.size();
+    if (groups.isEmpty()) {
+      out.error("No houses found");
+      return;
+    }
+
+    CommandTrace.enter(Phase.FORMAT);
+    int currentYear = Calendar.getInstance().get(Calendar.YEAR);
+    Lines lines = new Lines();
+    lines.text.append("Market:");
+    lines.endLine();
+    for (MarketStats.Group group : groups) {
+      for (String line : group.format(currentYear)) {
+        lines.text.append("  ").append(line);
+        lines.endLine();
+      }
+    }
+    CommandTrace.enter(Phase.WRITE);
+    lines.writeTo(out);
+  }
+
+  // The customer named by the first two arguments, null after telling the
+  // user when there is none.
+  private User customer(String[] arguments) {
+    CommandTrace.enter(Phase.LOOKUP);
+    User customer = arguments.length < 3 ? null : storage.getUser(arguments[1], arguments[2]);
+    if (customer == null) {
+      out.error("User not found!");
+      return null;
+    }
+    if (customer.getUserType() != UserType.CUSTOMER) {
+      out.error("This user is not a customer");
+      return null;
+    }
+    return customer;
+  }
+
+  // IMPORT <user> <csv|binary> <file>
+  //
+  // An import is not journaled, a snapshot is taken right after it instead, so
+  // recovery does not depend on the file still being there. Mutations wait
+  // until the snapshot is written.
+  private void importData(String[] arguments) {
+    String user = arguments[1];
+
+    // Only the "ROOT" user can import data.
+    if (!user.equals("ROOT")) {
+      out.error("This user is not allowed to import data");
+      return;
+    }
+
+    Boolean binary = binaryFormat(arguments[2]);
+    if (binary == null) {
+      return;
+    }
+
+    DataTransfer.Result result;
+    if (persistence != null) {
+      persistence.beginImport();
+    }
+    try {
+      result = DataTransfer.importFile(storage, new File(arguments[3]), binary);
+      if (persistence != null) {
+        persistence.checkpoint();
+      }
+    } catch (IOException e) {
+      out.error("Could not import " + arguments[3] + ": " + e.getMessage());
+      return;
+    } finally {
+      if (persistence != null) {
+        persistence.endImport();
+      }
+    }
+    rows = result.users + result.houses;
+    for (User added : result.addedUsers) {
+      publish(ChangeKind.USER_ADDED, added, null, null);
+    }
+    for (House added : result.addedHouses) {
+      publish(ChangeKind.HOUSE_ADDED, added.getOwner(), added, null);
+    }
+    out.success("Imported " + result.users + " users and " + result.houses + " houses");
+    if (result.skipped > 0) {
+      out.success("Skipped " + result.skipped + " invalid or duplicate records");
+    }
+  }
+
+  // EXPORT <user> <csv|binary> <file>
+  private void exportData(String[] arguments) {
+    String user = arguments[1];
+
+    // Only the "ROOT" user can export data.
+    if (!user.equals("ROOT")) {
+      out.error("This user is not allowed to export data");
+      return;
+    }
+
+    Boolean binary = binaryFormat(arguments[2]);
+    if (binary == null) {
+      return;
+    }
+
+    int users;
+    try {
+      users = DataTransfer.export(storage, new File(arguments[3]), binary);
+    } catch (IOException e) {
+      out.error("Could not export " + arguments[3] + ": " + e.getMessage());
+      return;
+    }
+    rows = users;
+    out.success("Exported " + users + " users");
+  }
+
+  // Whether the format of an import or export is binary, null after telling
+  // the user when it is neither csv nor binary.
+  private Boolean binaryFormat(String format) {
+    if (format.equalsIgnoreCase("binary")) {
+      return true;
+    }
+    if (format.equalsIgnoreCase("csv")) {
+      return false;
+    }
+    out.error("Unknown format, use csv or binary");
+    return null;
+  }
+
+  private void help() {
+    CommandTrace.enter(Phase.WRITE);
+    out.success("Available commands:");
+    out.success("  help");
+    out.success("  add user <user> <user type> <name> <last name> <national ID> <phone number> <address> <!salary>");
+    out.success("  remove user <user> <name> <last name>");
+    out.success("  add house <user> <owner name> <owner last> <price> <area> <address> <number of rooms> <has parking> <year of construction> <!latitude> <!longitude>");
+    out.success("  purchase <user> <owner name> <owner last> <house ID> <buyer name> <buyer last>");
+    out.success("  remove house <user> <owner name> <owner last> <house ID>");
+    out.success("  list users <!format> <!limit> <!cursor>");
+    out.success("  report <!format> <!limit> <!cursor>");
+    out.success("     * formats: <!text> <!csv> <!json>, pass the printed cursor to get the next page");
+    out.success("  options <name> <last name> <!limit> <!page>");
+    out.success("  search house <user> <search key> <search value>");
+    out.success("     * search keys: <!ID> <!price> <!area> <!address> <!rooms> <!parking> <!construction>");
+    out.success("     * price, area, rooms and construction also accept ranges: <min>..<max>, <min>.. or ..<max>");
+    out.success("     * address accepts * wildcards: Teh*, *ran or *hr*");
+    out.success("  search house <user> near <latitude> <longitude> <radius in km> <!condition> <!AND|OR condition ...>");
+    out.success("  search house <user> nearest <latitude> <longitude> <count> <!condition> <!AND|OR condition ...>");
+    out.success("     * houses with a location, nearest first, the conditions are those of query");
+    out.success("  query <user> <condition> <!AND|OR condition ...> <!ORDER BY field <!ASC|DESC>> <!LIMIT n>");
+    out.success("     * conditions: <field><operator><value> with operators = != < <= > >=, e.g. price<=500000");
+    out.success("     * fields: <!id> <!price> <!area> <!address> <!rooms> <!parking> <!construction> <!purchased>");
+    out.success("     * AND binds tighter than OR");
+    out.success("  search user <user> <search key> <search value>");
+    out.success("     * search keys: <!ID> <!name> <!last> <!phone> <!address> <!userType>");
+    out.success("  import <user> <csv|binary> <file>");
+    out.success("  export <user> <csv|binary> <file>");
+    out.success("  subscribe <from sequence> <!limit>");
+    out.success("  watch <name> <last name> <options|search key> <!search value>");
+    out.success("  unwatch <name> <last name> <search ID>");
+    out.success("  matches <name> <last name>");
+    out.success("  market <!address>");
+    out.success("  cache");
+    out.success("  stats");
+    out.success("  flush");
+    out.success("Arguments containing spaces can be wrapped in double quotes.");
+  }
+
+  // ADD_USER <user> <user type> <name> <last name> <national ID> <phone number> <address> <!salary>
+  private void addUser(String[] arguments) {
+    String user = arguments[1];
+
+    // Only the "ROOT" user can add users.
+    if (!user.equals("ROOT")) {
+      out.error("This user is not allowed to add users");
+      return;
+    }
+
+    String userType = arguments[2];
+    String name = arguments[3];
+    String lastName = arguments[4];
+    String nationalID = arguments[5];
+    String phoneNumber = arguments[6];
+    String address = arguments[7];
+
+    CommandTrace.enter(Phase.WRITE);
+    User added = null;
+    switch (userType) {
+      case "SELLER":
+        added = new User(name, lastName, nationalID, phoneNumber, address, UserType.SELLER);
+        break;
+      case "CUSTOMER":
+        int salary = Integer.parseInt(arguments[8]);
+        added = new User(name, lastName, nationalID, phoneNumber, address, UserType.CUSTOMER, salary);
+        break;
+    }
+    if (added != null) {
+      this.storage.addUser(added);
+      applied = true;
+      publish(ChangeKind.USER_ADDED, added, null, null);
+    }
+    out.success("User added");
+  }
+
+  private void removeUser(String[] arguments) {
+    String user = arguments[1];
+
+    // Only the "ROOT" user can remove users.
+    if (!user.equals("ROOT")) {
+      out.error("This user is not allowed to remove users");
+      return;
+    }
+
+    String name = arguments[2];
+    String lastName = arguments[3];
+
+    CommandTrace.enter(Phase.LOOKUP);
+    User userToRemove = this.storage.getUser(name, lastName);
+    if (userToRemove == null) {
+      out.error("User not found");
+      return;
+    }
+
+    // Only the named user goes, the one whose stripe this command holds, and
+    // their houses with them.
+    CommandTrace.enter(Phase.WRITE);
+    applied = true;
+    if (changes == null && searches == null && market == null) {
+      this.storage.removeUser(userToRemove);
+    } else {
+      Collection<House> houses = storage.getHousesOf(userToRemove);
+      this.storage.removeUser(userToRemove);
+      for (House house : houses) {
+        publish(ChangeKind.HOUSE_REMOVED, userToRemove, house, null);
+      }
+      publish(ChangeKind.USER_REMOVED, userToRemove, null, null);
+    }
+    out.success("User removed");
+  }
+
+  // ADD_HOUSE <user> <owner name> <owner last> <price> <area> <address> <number of rooms> <has parking> <year of construction> <!latitude> <!longitude>
+  public void addHouse(String[] arguments) {
+    String user = arguments[1];
+
+    // Only the "ROOT" user can add users.
+    if (!user.equals("ROOT")) {
+      out.error("This user is not allowed to add houses");
+      return;
+    }
+
+    int price = Integer.parseInt(arguments[4]);
+    int area = Integer.parseInt(arguments[5]);
+    String address = arguments[6];
+    int numberOfRooms = Integer.parseInt(arguments[7]);
+    boolean hasParking = Boolean.parseBoolean(arguments[8]);
+    int yearOfConstruction = Integer.parseInt(arguments[9]);
+    float latitude = Float.NaN;
+    float longitude = Float.NaN;
+    if (arguments.length > 10) {
+      latitude = Float.parseFloat(arguments[10]);
+      longitude = arguments.length > 11 ? Float.parseFloat(arguments[11]) : Float.NaN;
+      if (!House.isValidLocation(latitude, longitude)) {
+        out.error("Invalid location");
+        return;
+      }
+    }
+
+    CommandTrace.enter(Phase.LOOKUP);
+    User owner = this.storage.getUser(arguments[2], arguments[3]);
+    if (owner == null) {
+      out.error("Owner not found!");
+      return;
+    }
+
+    CommandTrace.enter(Phase.WRITE);
+    House house = new House(price, area, address, numberOfRooms, hasParking, yearOfConstruction, owner);
+    house.setLocation(latitude, longitude);
+    this.storage.addHouse(house);
+    applied = true;
+    publish(ChangeKind.HOUSE_ADDED, owner, house, null);
+    out.success("House added");
+  }
+
+  // LIST_USERS <!format> <!limit> <!cursor>
+  private void listUsers(String[] arguments) {
+    Paging paging = Paging.parse(arguments, 1, out);
+    if (paging == null) {
+      return;
+    }
+
+    CommandTrace.enter(Phase.LOOKUP);
+    List<User> users = paging.fetch(storage);
+    rows = users.size();
+    String title = null;
+    if (paging.format == OutputFormat.TEXT) {
+      title = "Users:";
+    } else if (paging.format == OutputFormat.CSV) {
+      title = "name,last_name,national_id,phone,address,type,salary";
+    }
+    printUsers(title, users, paging.format);
+    paging.printNext(users, out);
+  }
+
+  private static void appendUser(StringBuilder line, User user, OutputFormat format) {
+    if (format == OutputFormat.CSV) {
+      appendCsv(line, user.getName()).append(',');
+      appendCsv(line, user.getLastName()).append(',');
+      appendCsv(line, user.getNationalID()).append(',');
+      appendCsv(line, user.getPhoneNumber()).append(',');
+      appendCsv(line, user.getAddress()).append(',');
+      line.append(user.getUserType()).append(',').append(user.getSalary());
+    } else {
+      line.append("{\"name\":");
+      appendJson(line, user.getName()).append(",\"lastName\":");
+      appendJson(line, user.getLastName()).append(",\"nationalID\":");
+      appendJson(line, user.getNationalID()).append(",\"phone\":");
+      appendJson(line, user.getPhoneNumber()).append(",\"address\":");
+      appendJson(line, user.getAddress()).append(",\"type\":\"").append(user.getUserType())
+          .append("\",\"salary\":").append(user.getSalary());
+    }
+  }
+
+  private static void appendHouse(StringBuilder line, House house, int currentYear, OutputFormat format) {
+    if (format == OutputFormat.CSV) {
+      line.append(house.getId()).append(',').append(house.getPrice()).append(',').append(house.getArea()).append(',');
+      appendCsv(line, house.getAddress()).append(',').append(house.getNumberOfRooms()).append(',')
+          .append(house.hasParking()).append(',').append(house.getYearOfConstruction()).append(',')
+          .append(house.age(currentYear)).append(',').append(house.isPurchased());
+    } else {
+      line.append("{\"id\":").append(house.getId()).append(",\"price\":").append(house.getPrice())
+          .append(",\"area\":").append(house.getArea()).append(",\"address\":");
+      appendJson(line, house.getAddress()).append(",\"rooms\":").append(house.getNumberOfRooms())
+          .append(",\"parking\":").append(house.hasParking()).append(",\"construction\":")
+          .append(house.getYearOfConstruction()).append(",\"age\":").append(house.age(currentYear))
+          .append(",\"purchased\":").append(house.isPurchased());
+      if (house.hasLocation()) {
+        line.append(",\"latitude\":").append(house.getLatitude()).append(",\"longitude\":")
+            .append(house.getLongitude());
+      }
+      line.append('}');
+    }
+  }
+
+  static StringBuilder appendCsv(StringBuilder line, String value) {
+    boolean quote = false;
+    for (int i = 0; i < value.length() && !quote; i++) {
+      char c = value.charAt(i);
+      quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+    }
+    if (!quote) {
+      return line.append(value);
+    }
+
+    line.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"') {
+        line.append('"');
+      }
+      line.append(c);
+    }
+    return line.append('"');
+  }
+
+  private static StringBuilder appendJson(StringBuilder line, String value) {
+    line.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if (c < 0x20) {
+        line.append(String.format("\\u%04x", (int) c));
+      } else {
+        line.append(c);
+      }
+    }
+    return line.append('"');
+  }
+
+  // SEARCH_HOUSE <user> [search key] [search value]
+  // search keys: <!ID> <!price> <!area> <!address> <!number of rooms> <!has parking> <!year of construction>
+  // numeric keys also accept a "<min>..<max>" range as the search value
+  // and address a pattern with "*" wildcards
+  private void searchHouse(String[] arguments) {
+    String user = arguments[1];
+
+    // Only the "ROOT" user can search houses.
+    if (!user.equals("ROOT")) {
+      out.error("This user is not allowed to search houses");
+      return;
+    }
+
+    if (arguments[2].equals("near") || arguments[2].equals("nearest")) {
+      searchNear(arguments);
+      return;
+    }
+
+    final String searchKey = arguments[2];
+    final String searchValue = arguments[3];
+
+    CommandTrace.enter(Phase.LOOKUP);
+    List<House> houses = cached("search_house\0" + searchKey + "\0" + searchValue, QueryCache.HOUSES,
+        new QueryCache.Lookup<List<House>>() {
+          public List<House> compute() {
+            return storage.searchHouse(searchKey, searchValue);
+          }
+        });
+    rows = houses.size();
+    if (houses.isEmpty()) {
+      out.error("No houses found");
+      return;
+    }
+
+    printHouses("Houses:", houses);
+  }
+
+  // SEARCH_HOUSE <user> near <latitude> <longitude> <radius> [<condition> [AND|OR <condition> ...]]
+  // SEARCH_HOUSE <user> nearest <latitude> <longitude> <count> [<condition> [AND|OR <condition> ...]]
+  // the radius is in kilometres and the conditions are those of QUERY
+  private void searchNear(String[] arguments) {
+    final boolean nearest = arguments[2].equals("nearest");
+    final float latitude;
+    final float longitude;
+    final double radius;
+    final int count;
+    final HouseQuery filter;
+    try {
+      latitude = Float.parseFloat(arguments[3]);
+      longitude = Float.parseFloat(arguments[4]);
+      radius = nearest ? GeoGrid.MAX_DISTANCE : Double.parseDouble(arguments[5]);
+      count = nearest ? Integer.parseInt(arguments[5]) : Integer.MAX_VALUE;
+      filter = arguments.length > 6 ? HouseQuery.parseFilter(arguments, 6) : null;
+    } catch (NumberFormatException e) {
+      out.error("Invalid number in search");
+      return;
+    } catch (IllegalArgumentException e) {
+      out.error(e.getMessage());
+      return;
+    }
+    if (!House.isValidLocation(latitude, longitude)) {
+      out.error("Invalid location");
+      return;
+    }
+    if (!(radius >= 0) || count <= 0) {
+      out.error(nearest ? "The count must be positive" : "The radius must not be negative");
+      return;
+    }
+
+    StringBuilder key = new StringBuilder("search_house");
+    for (int i = 2; i < arguments.length; i++) {
+      key.append('\0').append(arguments[i]);
+    }
+    CommandTrace.enter(Phase.LOOKUP);
+    List<House> houses = cached(key.toString(), QueryCache.HOUSES, new QueryCache.Lookup<List<House>>() {
+      public List<House> compute() {
+        return nearest ? storage.nearestHouses(latitude, longitude, count, filter)
+            : storage.searchNear(latitude, longitude, radius, count, filter);
+      }
+    });
+    rows = houses.size();
+    if (houses.isEmpty()) {
+      out.error("No houses found");
+      return;
+    }
+
+    printHouses("Houses:", houses);
+  }
+
+  // QUERY <user> <condition> [AND|OR <condition> ...] [ORDER BY <field> [ASC|DESC]] [LIMIT <n>]
+  // a condition is <field><operator><value> without spaces, e.g. price<=500000
+  private void query(String[] arguments) {
+    String user = arguments[1];
+
+    // Only the "ROOT" user can search houses.
+    if (!user.equals("ROOT")) {
+      out.error("This user is not allowed to search houses");
+      return;
+    }
+
+    final HouseQuery query;
+    try {
+      query = HouseQuery.parse(arguments, 2);
+    } catch (NumberFormatException e) {
+      out.error("Invalid number in query");
+      return;
+    } catch (IllegalArgumentException e) {
+      out.error(e.getMessage());
+      return;
+    }
+
+    StringBuilder key = new StringBuilder("query");
+    for (int i = 2; i < arguments.length; i++) {
+      key.append('\0').append(arguments[i]);
+    }
+    CommandTrace.enter(Phase.LOOKUP);
+    List<House> houses = cached(key.toString(), QueryCache.HOUSES, new QueryCache.Lookup<List<House>>() {
+      public List<House> compute() {
+        return storage.queryHouses(query);
+      }
+    });
+    rows = houses.size();
+    if (houses.isEmpty()) {
+      out.error("No houses found");
+      return;
+    }
+
+    printHouses("Houses:", houses);
+  }
+
+  // SEARCH_USER <user> [search key] [search value]
+  // search keys: <!ID> <!name> <!last> <!phone> <!address>
+  private void searchUser(String[] arguments) {
+    String user = arguments[1];
+
+    // Only the "ROOT" user can search users.
+    if (!user.equals("ROOT")) {
+      out.error("This user is not allowed to search users");
+      return;
+    }
+
+    final String searchKey = arguments[2];
+    final String searchValue = arguments[3];
+
+    CommandTrace.enter(Phase.LOOKUP);
+    List<User> users = cached("search_user\0" + searchKey + "\0" + searchValue, QueryCache.USERS,
+        new QueryCache.Lookup<List<User>>() {
+          public List<User> compute() {
+            return storage.searchUser(searchKey, searchValue);
+          }
+        });
+
+    rows = users.size();
+    if (users.isEmpty()) {
+      out.error("No users found");
+      return;
+    }
+
+    printUsers("Users:", users, OutputFormat.TEXT);
+  }
+
+  // Prints a titled listing of houses, formatting a window of them at a time
+  // and then writing it, so the phases of a slow command can be told apart.
+  private void printHouses(String title, List<House> houses) {
+    int currentYear = Calendar.getInstance().get(Calendar.YEAR);
+    CommandTrace.enter(Phase.WRITE);
+    out.success(title);
+    for (int from = 0; from < houses.size(); from += OUTPUT_WINDOW) {
+      CommandTrace.enter(Phase.FORMAT);
+      Lines lines = new Lines();
+      for (House house : houses.subList(from, Math.min(houses.size(), from + OUTPUT_WINDOW))) {
+        house.appendTo(lines.text.append("  "), currentYear);
+        lines.endLine();
+      }
+      CommandTrace.enter(Phase.WRITE);
+      lines.writeTo(out);
+    }
+  }
+
+  // The same for users in any format, without a title when it is null.
+  private void printUsers(String title, List<User> users, OutputFormat format) {
+    CommandTrace.enter(Phase.WRITE);
+    if (title != null) {
+      out.success(title);
+    }
+    for (int from = 0; from < users.size(); from += OUTPUT_WINDOW) {
+      CommandTrace.enter(Phase.FORMAT);
+      Lines lines = new Lines();
+      for (User user : users.subList(from, Math.min(users.size(), from + OUTPUT_WINDOW))) {
+        if (format == OutputFormat.TEXT) {
+          lines.text.append("  ").append(user.getFullName()).append(" (").append(user.getUserType()).append(')');
+        } else {
+          appendUser(lines.text, user, format);
+          if (format == OutputFormat.JSON) {
+            lines.text.append('}');
+          }
+        }
+        lines.endLine();
+      }
+      CommandTrace.enter(Phase.WRITE);
+      lines.writeTo(out);
+    }
+  }
+
+  // REMOVE_HOUSE <user> <owner name> <owner last> <house ID>
+  private void removeHouse(String[] arguments) {
+    String user = arguments[1];
+
+    // Only the "ROOT" user can remove houses.
+    if (!user.equals("ROOT")) {
+      out.error("This user is not allowed to remove houses");
+      return;
+    }
+
+    CommandTrace.enter(Phase.LOOKUP);
+    User owner = this.storage.getUser(arguments[2], arguments[3]);
+    if (owner == null) {
+      out.error("Owner not found!");
+      return;
+    }
+
+    House house = this.storage.getHouse(Integer.parseInt(arguments[4]));
+    if (house == null || house.getOwner() != owner) {
+      out.error("House not found!");
+      return;
+    }
+
+    CommandTrace.enter(Phase.WRITE);
+    this.storage.removeHouse(house.getId());
+    applied = true;
+    publish(ChangeKind.HOUSE_REMOVED, owner, house, null);
+    out.success("House removed");
+  }
+
+  private void purchase(String[] arguments) {
+    String user = arguments[1];
+
+    // Only the "ROOT" user can purchase houses.
+    if (!user.equals("ROOT")) {
+      out.error("This user is not allowed to purchase houses");
+      return;
+    }
+
+    CommandTrace.enter(Phase.LOOKUP);
+    User owner = this.storage.getUser(arguments[2], arguments[3]);
+    if (owner == null) {
+      out.error("Owner not found!");
+      return;
+    }
+
+    House house = this.storage.getHouse(Integer.parseInt(arguments[4]));
+
+    if (house == null || house.getOwner() != owner) {
+      out.error("House not found!");
+      return;
+    }
+
+    User buyer = this.storage.getUser(arguments[5], arguments[6]);
+    if (buyer == null) {
+      out.error("Buyer not found!");
+      return;
+    }
+
+    // The rules are checked and the house is transferred as one transaction.
+    CommandTrace.enter(Phase.WRITE);
+    switch (this.storage.purchase(house.getId(), owner, buyer)) {
+      case PURCHASED:
+        applied = true;
+        publish(ChangeKind.HOUSE_PURCHASED, owner, house, buyer);
+        out.success("House purchased");
+        break;
+      case HOUSE_NOT_FOUND:
+        out.error("House not found!");
+        break;
+      case NOT_ENOUGH_MONEY:
+        out.error("Buyer does not have enough money!");
+        break;
+      case BUYER_IS_OWNER:
+        out.error("Buyer is the owner of the house!");
+        break;
+      case BUYER_OWNS_HOUSE:
+        out.error("Buyer is the owner of another house!");
+        break;
+    }
+  }
+
+  // OPTIONS <name> <last name> <!limit> <!page>
+  private void options(String[] arguments) {
+    CommandTrace.enter(Phase.LOOKUP);
+    User user = this.storage.getUser(arguments[1], arguments[2]);
+
+    if (user == null) {
+      out.error("User not found!");
+      return;
+    }
+
+    if (user.getUserType() != UserType.CUSTOMER) {
+      out.error("This user is not a customer");
+      return;
+    }
+
+    // Pages are numbered from 1 and only make sense together with a limit.
+    int limit;
+    int page;
+    try {
+      limit = arguments.length > 3 ? Integer.parseInt(arguments[3]) : Integer.MAX_VALUE;
+      page = arguments.length > 4 ? Integer.parseInt(arguments[4]) : 1;
+    } catch (NumberFormatException e) {
+      out.error("Limit and page must be numbers!");
+      return;
+    }
+    if (limit <= 0 || page <= 0) {
+      out.error("Limit and page must be positive!");
+      return;
+    }
+    final int salary = user.getSalary();
+    final int skip = (int) Math.min((long) (page - 1) * limit, Integer.MAX_VALUE);
+    final int count = limit;
+
+    // Customers with the same salary see the same houses, so they share entries.
+    List<House> houses = cached("options\0" + salary + "\0" + skip + "\0" + count, QueryCache.HOUSES,
+        new QueryCache.Lookup<List<House>>() {
+          public List<House> compute() {
+            return storage.getAvailableHouses(salary, skip, count);
+          }
+        });
+
+    rows = houses.size();
+    printHouses("Available Houses to Buy:", houses);
+  }
+
+  // Users or houses of a listing or report that are formatted at a time.
+  private static final int OUTPUT_WINDOW = 16384;
+
+  // REPORT <!format> <!limit> <!cursor>
+  //
+  // The report is written window by window straight to the output, and only
+  // "limit" users are read from the storage at a time. The users of a window
+  // are formatted in parallel chunks and written in order, so a large report
+  // uses every core without holding all of its text at once.
+  private void report(String[] arguments) {
+    Paging paging = Paging.parse(arguments, 1, out);
+    if (paging == null) {
+      return;
+    }
+
+    final int currentYear = Calendar.getInstance().get(Calendar.YEAR);
+    final OutputFormat format = paging.format;
+    CommandTrace.enter(Phase.LOOKUP);
+    List<User> users = paging.fetch(storage);
+    rows = users.size();
+    CommandTrace.enter(Phase.WRITE);
+    if (format == OutputFormat.TEXT) {
+      out.success("Report:");
+    } else if (format == OutputFormat.CSV) {
+      out.success("name,last_name,national_id,phone,address,type,salary,"
+          + "house_id,price,area,house_address,rooms,parking,construction,age,purchased");
+    }
+
+    for (int from = 0; from < users.size(); from += OUTPUT_WINDOW) {
+      final List<User> window = users.subList(from, Math.min(users.size(), from + OUTPUT_WINDOW));
+      CommandTrace.enter(Phase.FORMAT);
+      List<Lines> chunks = ParallelScan.map(window.size(), new ParallelScan.Chunk<Lines>() {
+        public Lines run(int start, int end) {
+          Lines lines = new Lines();
+          for (int i = start; i < end; i++) {
+            appendReport(lines, window.get(i), format, currentYear);
+          }
+          return lines;
+        }
+      });
+      CommandTrace.enter(Phase.WRITE);
+      for (Lines lines : chunks) {
+        lines.writeTo(out);
+      }
+    }
+    paging.printNext(users, out);
+  }
+
+  private void appendReport(Lines lines, User user, OutputFormat format, int currentYear) {
+    StringBuilder text = lines.text;
+    if (format == OutputFormat.TEXT) {
+      text.append("  ").append(user.getFullName()).append(" (").append(user.getUserType()).append(")");
+      lines.endLine();
+      text.append("    ").append(user.getUserType() == UserType.CUSTOMER ? "Customer" : "Seller");
+      lines.endLine();
+
+      if (user.getUserType() == UserType.ADMIN) {
+        return;
+      }
+
+      // print houses if there are any
+      Collection<House> houses = storage.getHousesOf(user);
+      if (houses != null) {
+        text.append("    Houses:");
+        lines.endLine();
+        for (House house : houses) {
+          house.appendTo(text.append("      "), currentYear);
+          lines.endLine();
+        }
+      }
+    } else if (format == OutputFormat.CSV) {
+      // One row per house, users without houses get a row with empty house columns.
+      Collection<House> houses = user.getUserType() == UserType.ADMIN ? new ArrayList<House>()
+          : storage.getHousesOf(user);
+      if (houses.isEmpty()) {
+        appendUser(text, user, OutputFormat.CSV);
+        text.append(",,,,,,,,,");
+        lines.endLine();
+      }
+      for (House house : houses) {
+        appendUser(text, user, OutputFormat.CSV);
+        appendHouse(text.append(','), house, currentYear, OutputFormat.CSV);
+        lines.endLine();
+      }
+    } else {
+      appendUser(text, user, OutputFormat.JSON);
+      text.append(",\"houses\":[");
+      if (user.getUserType() != UserType.ADMIN) {
+        boolean first = true;
+        for (House house : storage.getHousesOf(user)) {
+          if (!first) {
+            text.append(',');
+          }
+          first = false;
+          appendHouse(text, house, currentYear, OutputFormat.JSON);
+        }
+      }
+      text.append("]}");
+      lines.endLine();
+    }
+  }
+
+  // Lines is formatted output kept as one text with the end of every line.
+  private static class Lines {
+    StringBuilder text = new StringBuilder(1024);
+    IntList ends = new IntList();
+
+    void endLine() {
+      ends.add(text.length());
+    }
+
+    void writeTo(Output out) {
+      int start = 0;
+      for (int i = 0; i < ends.size(); i++) {
+        out.success(text, start, ends.get(i));
+        start = ends.get(i);
+      }
+    }
+  }
+
+  // Paging holds the optional <format> <limit> <cursor> arguments of the
+  // report and list_users commands.
+  private static class Paging {
+    OutputFormat format = OutputFormat.TEXT;
+    int limit = Integer.MAX_VALUE;
+    long cursor = 0;
+    boolean more = false;
+
+    // Returns null, after telling the user why, when an argument is invalid.
+    static Paging parse(String[] arguments, int from, Output out) {
+      Paging paging = new Paging();
+      if (arguments.length > from) {
+        paging.format = OutputFormat.lookup(arguments[from]);
+        if (paging.format == null) {
+          out.error("Invalid format, limit or cursor!");
+          return null;
+        }
+      }
+      try {
+        if (arguments.length > from + 1) {
+          paging.limit = Integer.parseInt(arguments[from + 1]);
+        }
+        if (arguments.length > from + 2) {
+          paging.cursor = Long.parseLong(arguments[from + 2]);
+        }
+      } catch (NumberFormatException e) {
+        out.error("Invalid format, limit or cursor!");
+        return null;
+      }
+      if (paging.limit <= 0) {
+        out.error("Limit must be positive!");
+        return null;
+      }
+      return paging;
+    }
+
+    // The users of the page. One user more than the limit is read to know
+    // whether another page follows.
+    List<User> fetch(Storage storage) {
+      List<User> users = storage.getUsersAfter(cursor, limit == Integer.MAX_VALUE ? limit : limit + 1);
+      more = users.size() > limit;
+      return more ? users.subList(0, limit) : users;
+    }
+
+    // The cursor of the next page is printed when there is one.
+    void printNext(List<User> users, Output out) {
+      if (!more) {
+        return;
+      }
+      long next = users.get(users.size() - 1).getSerial();
+      if (format == OutputFormat.JSON) {
+        out.success("{\"next\":" + next + "}");
+      } else {
+        out.success("next " + next);
+      }
+    }
+  }
+}
 
-    List<House> houses = this.storage.searchHouse(searchKey, searchValue);
-    if (houses.isEmpty()) {
-      System.out.println("\033[31m" + "No houses found" + "\033[0m");
-      return;
+/* ------------------------------- Persistence ------------------------------- */
+
+// Journal is an append only log of the mutating commands. Every record holds a
+// sequence number, a checksum and the command line as it was entered:
+//
+//   [int length][long sequence][int crc32][length bytes of UTF-8 command]
+//
+// Records are buffered and the file is forced to disk once per group, when the
+// group is full or the oldest record in it has waited long enough, so a sync is
+// shared by many commands instead of paid by each one. A command is answered
+// once its record is appended, before its group is forced, so a crash can lose
+// the last GROUP_MILLIS or so of acknowledged commands, never more, and never
+// a record in the middle of the journal.
+class Journal implements Closeable {
+  private static final int GROUP_SIZE = 1024;
+  private static final long GROUP_MILLIS = 5;
+
+  private FileOutputStream file;
+  private DataOutputStream stream;
+  private long nextSequence;
+  private int pending = 0;
+  private long oldestPending = 0;
+  private Thread syncer;
+
+  public Journal(File path, long nextSequence) throws IOException {
+    this.file = new FileOutputStream(path, true);
+    this.stream = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+    this.nextSequence = nextSequence;
+
+    // Forces records that are waiting for a group to fill up.
+    this.syncer = new Thread(new Runnable() {
+      public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+          try {
+            Thread.sleep(GROUP_MILLIS);
+            syncIfDue();
+          } catch (InterruptedException e) {
+            return;
+          } catch (IOException e) {
+            System.err.println("Journal sync failed: " + e.getMessage());
+          }
+        }
+      }
+    }, "journal-sync");
+    this.syncer.setDaemon(true);
+    this.syncer.start();
+  }
+
+  public synchronized long append(String command) throws IOException {
+    byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+
+    long sequence = nextSequence++;
+    stream.writeInt(bytes.length);
+    stream.writeLong(sequence);
+    stream.writeInt((int) crc.getValue());
+    stream.write(bytes);
+
+    if (pending++ == 0) {
+      oldestPending = System.currentTimeMillis();
     }
+    if (pending >= GROUP_SIZE) {
+      sync();
+    }
+    return sequence;
+  }
 
-    System.out.println("\033[32m" + "Houses:" + "\033[0m");
-    for (House house : houses) {
-      System.out.println("\033[32m" + "  " + house.toString() + "\033[0m");
+  private synchronized void syncIfDue() throws IOException {
+    if (pending > 0 && System.currentTimeMillis() - oldestPending >= GROUP_MILLIS) {
+      sync();
     }
   }
 
-  // SEARCH_USER <user> [search key] [search value]
-  // search keys: <!ID> <!name> <!last> <!phone> <!address>
-  private void searchUser(String[] arguments) {
-    String user = arguments[1];
+  public synchronized void sync() throws IOException {
+    stream.flush();
+    file.getChannel().force(false);
+    pending = 0;
+  }
 
-    // Only the "ROOT" user can search users.
-    if (!user.equals("ROOT")) {
-      System.out.println("\033[31m" + "This user is not allowed to search users" + "\033[0m");
-      return;
+  public synchronized long getLastSequence() {
+    return nextSequence - 1;
+  }
+
+  // Drops every record, used once they are all covered by a snapshot.
+  public synchronized void truncate() throws IOException {
+    stream.flush();
+    file.getChannel().truncate(0);
+    file.getChannel().force(true);
+    pending = 0;
+  }
+
+  public synchronized void close() throws IOException {
+    syncer.interrupt();
+    sync();
+    stream.close();
+  }
+
+  // Feeds every record after the given sequence to the dispatcher and returns
+  // the last sequence found, a null dispatcher only looks for it. A torn or
+  // corrupt record at the end of the file, left by a crash in the middle of a
+  // write, is cut off.
+  public static long replay(File path, long afterSequence, CommandDispatcher dispatcher) throws IOException {
+    long lastSequence = afterSequence;
+    if (!path.exists()) {
+      return lastSequence;
     }
 
-    String searchKey = arguments[2];
-    String searchValue = arguments[3];
+    long validLength = 0;
+    try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16))) {
+      while (true) {
+        int length;
+        long sequence;
+        int checksum;
+        byte[] bytes;
+        try {
+          length = stream.readInt();
+          sequence = stream.readLong();
+          checksum = stream.readInt();
+          // A length from a torn record can be anything, it is never trusted
+          // beyond the bytes the file still has.
+          if (length < 0 || length > path.length() - validLength - 16) {
+            break;
+          }
+          bytes = new byte[length];
+          stream.readFully(bytes);
+        } catch (EOFException e) {
+          break;
+        }
 
-    List<User> users = this.storage.searchUser(searchKey, searchValue);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
 
-    if (users.isEmpty()) {
-      System.out.println("\033[31m" + "No users found" + "\033[0m");
-      return;
+        validLength += 16 + length;
+        if (sequence > afterSequence) {
+          if (dispatcher != null) {
+            dispatcher.dispatch(new Command(new String(bytes, StandardCharsets.UTF_8)));
+          }
+          lastSequence = sequence;
+        }
+      }
     }
 
-    System.out.println("\033[32m" + "Users:" + "\033[0m");
-    for (User _user : users) {
-      System.out.println("\033[32m" + "  " + _user.toString() + "\033[0m");
+    if (validLength < path.length()) {
+      try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+        file.setLength(validLength);
+      }
     }
+    return lastSequence;
   }
+}
 
-  // REMOVE_HOUSE <user> <owner name> <owner last> <house ID>
-  private void removeHouse(String[] arguments) {
-    String user = arguments[1];
+// Snapshot writes the whole Storage to a compact binary file and reads it back.
+// The file also keeps the house ID sequence and the last journal sequence it
+// covers, so recovery only has to replay the journal records after it.
+class Snapshot {
+  private static final int MAGIC = 0x52455354; // "REST"
+  private static final int VERSION = 2; // 2 added the house locations
 
-    // Only the "ROOT" user can remove houses.
-    if (!user.equals("ROOT")) {
-      System.out.println("\033[31m" + "This user is not allowed to remove houses" + "\033[0m");
-      return;
+  // The snapshot is written next to the target and renamed over it, so a crash
+  // while writing never leaves a half written snapshot behind.
+  public static void write(Storage storage, File path, long sequence) throws IOException {
+    File temporary = new File(path.getPath() + ".tmp");
+    try (FileOutputStream file = new FileOutputStream(temporary);
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+      stream.writeInt(MAGIC);
+      stream.writeInt(VERSION);
+      stream.writeLong(sequence);
+      stream.writeInt(Variables.HOUSE_ID.get());
+
+      // Admins are not part of the data, they are created at startup.
+      int users = 0;
+      for (User user : storage.getUsers()) {
+        if (user.getUserType() != UserType.ADMIN) {
+          users++;
+        }
+      }
+
+      stream.writeInt(users);
+      for (User user : storage.getUsers()) {
+        if (user.getUserType() != UserType.ADMIN) {
+          writeUser(stream, storage, user);
+        }
+      }
+      stream.flush();
+      file.getChannel().force(true);
     }
+    Files.move(temporary.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
 
-    User owner = this.storage.getUser(arguments[2], arguments[3]);
-    if (owner == null) {
-      System.out.println("\033[31m" + "Owner not found!" + "\033[0m");
-      return;
+    // The rename is only durable once the directory is forced too, and the
+    // journal is truncated right after it.
+    File parent = path.getAbsoluteFile().getParentFile();
+    try (FileChannel directory = FileChannel.open(parent.toPath(), StandardOpenOption.READ)) {
+      directory.force(true);
+    } catch (IOException e) {
+      // Some platforms cannot open a directory, they make the rename durable on their own.
     }
+  }
 
-    House house = owner.getHouse(Integer.parseInt(arguments[4]));
-    if (house == null) {
-      System.out.println("\033[31m" + "House not found!" + "\033[0m");
-      return;
+  // Loads the snapshot into an empty storage and returns the journal sequence
+  // it covers.
+  public static long read(Storage storage, File path) throws IOException {
+    try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16))) {
+      int version = readVersion(stream, path);
+      long sequence = stream.readLong();
+      Variables.HOUSE_ID.set(stream.readInt());
+
+      int count = stream.readInt();
+      List<User> users = new ArrayList<User>(count);
+      List<House> houses = new ArrayList<House>();
+      for (int i = 0; i < count; i++) {
+        users.add(readUser(stream, houses, version));
+      }
+      storage.addAll(users, houses);
+      return sequence;
     }
+  }
 
-    owner.removeHouse(house.getId());
-    System.out.println("\033[32m" + "House removed" + "\033[0m");
+  // The journal sequence the snapshot covers, without loading it.
+  public static long readSequence(File path) throws IOException {
+    try (DataInputStream stream = new DataInputStream(new FileInputStream(path))) {
+      readVersion(stream, path);
+      return stream.readLong();
+    }
   }
 
-  private void purchase(String[] arguments) {
-    String user = arguments[1];
+  private static int readVersion(DataInputStream stream, File path) throws IOException {
+    int version = stream.readInt() == MAGIC ? stream.readInt() : -1;
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unsupported snapshot " + path);
+    }
+    return version;
+  }
 
-    // Only the "ROOT" user can purchase houses.
-    if (!user.equals("ROOT")) {
-      System.out.println("\033[31m" + "This user is not allowed to purchase houses" + "\033[0m");
-      return;
+  // Writes a user followed by its houses. Binary exports use the same record.
+  static void writeUser(DataOutputStream stream, Storage storage, User user) throws IOException {
+    stream.writeUTF(user.getName());
+    stream.writeUTF(user.getLastName());
+    stream.writeUTF(user.getNationalID());
+    stream.writeUTF(user.getPhoneNumber());
+    stream.writeUTF(user.getAddress());
+    stream.writeByte(((UserType) user.getUserType()).ordinal());
+    stream.writeInt(user.getSalary());
+    stream.writeBoolean(user.hasPurchasedHouse());
+
+    Collection<House> houses = storage.getHousesOf(user);
+    stream.writeInt(houses.size());
+    for (House house : houses) {
+      stream.writeInt(house.getId());
+      stream.writeInt(house.getPrice());
+      stream.writeFloat(house.getArea());
+      stream.writeUTF(house.getAddress());
+      stream.writeInt(house.getNumberOfRooms());
+      stream.writeBoolean(house.hasParking());
+      stream.writeBoolean(house.isPurchased());
+      stream.writeInt(house.getYearOfConstruction());
+      stream.writeFloat(house.getLatitude());
+      stream.writeFloat(house.getLongitude());
     }
+  }
 
-    User owner = this.storage.getUser(arguments[2], arguments[3]);
-    if (owner == null) {
-      System.out.println("\033[31m" + "Owner not found!" + "\033[0m");
-      return;
+  // Reads a record written by writeUser and adds the user's houses to the list.
+  // Records of version 1 have no locations.
+  static User readUser(DataInputStream stream, List<House> houses, int version) throws IOException {
+    User user = new User(stream.readUTF(), stream.readUTF(), stream.readUTF(), stream.readUTF(),
+        stream.readUTF(), UserType.values()[stream.readByte()], stream.readInt());
+    user.setHasPurchasedHouse(stream.readBoolean());
+
+    int count = stream.readInt();
+    for (int i = 0; i < count; i++) {
+      int id = stream.readInt();
+      int price = stream.readInt();
+      float area = stream.readFloat();
+      String address = stream.readUTF();
+      int numberOfRooms = stream.readInt();
+      boolean hasParking = stream.readBoolean();
+      boolean purchased = stream.readBoolean();
+      int yearOfConstruction = stream.readInt();
+      House house = new House(id, price, area, address, numberOfRooms, hasParking, purchased, yearOfConstruction,
+          user);
+      if (version >= 2) {
+        house.setLocation(stream.readFloat(), stream.readFloat());
+      }
+      houses.add(house);
     }
+    return user;
+  }
+}
 
-    House house = owner.getHouse(Integer.parseInt(arguments[4]));
+// DataTransfer imports and exports users with their houses in bulk, as CSV or
+// in the compact binary record of the snapshots. A CSV file holds one record
+// per line:
+//
+//   user,<name>,<last name>,<national ID>,<phone>,<address>,<type>,<salary>,<purchased a house>
+//   house,<ID>,<owner name>,<owner last>,<price>,<area>,<address>,<rooms>,<parking>,<construction>,<purchased>
+//
+// followed by ",<latitude>,<longitude>" for a house that has a location.
+// A house may come before its owner, and an empty ID gives it a new one. CSV
+// lines are parsed in parallel chunks and everything read is added with one
+// Storage.addAll, so the indexes are built once. Exports page through the
+// users and never hold more than a page of them.
+class DataTransfer {
+  private static final int MAGIC = 0x52455850; // "REXP"
+  private static final int VERSION = 2; // the version of the snapshot records in it
+  private static final int BATCH = 65536; // CSV lines parsed at a time
+  private static final int PAGE = 16384; // users exported at a time
 
-    if (house == null) {
-      System.out.println("\033[31m" + "House not found!" + "\033[0m");
-      return;
+  // What an import added and what it left out.
+  static class Result {
+    int users;
+    int houses;
+    int skipped;
+    List<User> addedUsers;
+    List<House> addedHouses;
+  }
+
+  // Records read from a file. The owner of every house is named by a
+  // (name, last name) pair, it is resolved once the whole file is read.
+  // Houses of the same owner that follow each other share one pair, so the
+  // owner is only looked up again when the pair changes.
+  private static class Records {
+    List<User> users = new ArrayList<User>();
+    List<House> houses = new ArrayList<House>();
+    List<String[]> owners = new ArrayList<String[]>();
+    int invalid;
+
+    void addHouse(House house, String name, String lastName) {
+      String[] owner = owners.isEmpty() ? null : owners.get(owners.size() - 1);
+      if (owner == null || !owner[0].equals(name) || !owner[1].equals(lastName)) {
+        owner = new String[] { name, lastName };
+      }
+      houses.add(house);
+      owners.add(owner);
     }
 
-    User buyer = this.storage.getUser(arguments[5], arguments[6]);
-    if (buyer == null) {
-      System.out.println("\033[31m" + "Buyer not found!" + "\033[0m");
-      return;
+    void addAll(Records other) {
+      users.addAll(other.users);
+      houses.addAll(other.houses);
+      owners.addAll(other.owners);
+      invalid += other.invalid;
     }
+  }
 
-    // The buyer must have enough money to buy the house.
-    if (buyer.getSalary() < house.getPrice()) {
-      System.out.println("\033[31m" + "Buyer does not have enough money!" + "\033[0m");
-      return;
+  // Adds the users and houses of the file to the storage. Admins, users whose
+  // full name is taken, houses whose owner is unknown or whose ID is taken and
+  // lines that do not parse are skipped. The houses of a user whose name is
+  // taken go to the stored user.
+  public static Result importFile(Storage storage, File file, boolean binary) throws IOException {
+    Records records = binary ? readBinary(file) : readCsv(file);
+    CommandTrace.enter(Phase.LOOKUP);
+    Result result = new Result();
+    result.skipped = records.invalid;
+
+    HashMap<String, User> owners = new HashMap<String, User>();
+    List<User> users = new ArrayList<User>(records.users.size());
+    for (User user : records.users) {
+      String key = key(user.getName(), user.getLastName());
+      User present = owners.containsKey(key) ? owners.get(key) : storage.getUser(user.getName(), user.getLastName());
+      if (present != null || user.getUserType() == UserType.ADMIN) {
+        owners.put(key, present);
+        result.skipped++;
+        continue;
+      }
+      owners.put(key, user);
+      users.add(user);
     }
 
-    // The buyer must not be the owner of the house.
-    if (buyer.equals(house.getOwner())) {
-      System.out.println("\033[31m" + "Buyer is the owner of the house!" + "\033[0m");
-      return;
+    // Houses added from now on get IDs past the imported ones, so the IDs
+    // checked below can not be taken before the houses are added.
+    int maxId = -1;
+    for (House house : records.houses) {
+      maxId = Math.max(maxId, house.getId());
+    }
+    for (int next = Variables.HOUSE_ID.get(); next <= maxId; next = Variables.HOUSE_ID.get()) {
+      if (Variables.HOUSE_ID.compareAndSet(next, maxId + 1)) {
+        break;
+      }
     }
 
-    // The buyer must not be the owner of any other house.
-    if (buyer.getHouses() != null) {
-      for (House h : buyer.getHouses()) {
-        if (h.getOwner().equals(buyer)) {
-          System.out.println("\033[31m" + "Buyer is the owner of another house!" + "\033[0m");
-          return;
+    IntHashMap<House> taken = new IntHashMap<House>(records.houses.size());
+    List<House> houses = new ArrayList<House>(records.houses.size());
+    String[] name = null;
+    User owner = null;
+    for (int i = 0; i < records.houses.size(); i++) {
+      House house = records.houses.get(i);
+      if (records.owners.get(i) != name) {
+        name = records.owners.get(i);
+        String key = key(name[0], name[1]);
+        if (!owners.containsKey(key)) {
+          owners.put(key, storage.getUser(name[0], name[1]));
         }
+        owner = owners.get(key);
+      }
+      int id = house.getId();
+      if (owner == null || id >= 0 && (taken.containsKey(id) || storage.getHouse(id) != null)) {
+        result.skipped++;
+        continue;
       }
+      if (id < 0 || house.getOwner() != owner) {
+        house = new House(id < 0 ? Variables.HOUSE_ID.getAndIncrement() : id, house.getPrice(), house.getArea(),
+            house.getAddress(), house.getNumberOfRooms(), house.hasParking(), house.isPurchased(),
+            house.getYearOfConstruction(), owner);
+        house.setLocation(records.houses.get(i).getLatitude(), records.houses.get(i).getLongitude());
+      }
+      taken.put(house.getId(), house);
+      houses.add(house);
     }
 
-    // Marks the house as sold.
-    house.changeOwner(buyer);
+    CommandTrace.enter(Phase.WRITE);
+    int read = users.size() + houses.size();
+    storage.addImported(users, houses);
+    result.skipped += read - users.size() - houses.size();
+    result.users = users.size();
+    result.houses = houses.size();
+    result.addedUsers = users;
+    result.addedHouses = houses;
+    return result;
+  }
 
-    // Transfers the house to the buyer.
-    owner.removeHouse(house.getId());
+  // The full name key Storage uses for its own index.
+  private static String key(String name, String lastName) {
+    return name + "\0" + lastName;
+  }
 
-    buyer.addHouse(house);
-    buyer.setHasPurchasedHouse(true);
+  private static Records readCsv(File file) throws IOException {
+    Records records = new Records();
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+      final String[] lines = new String[BATCH];
+      int count = BATCH;
+      while (count == BATCH) {
+        count = 0;
+        String line;
+        while (count < BATCH && (line = reader.readLine()) != null) {
+          lines[count++] = line;
+        }
+        for (Records chunk : ParallelScan.map(count, new ParallelScan.Chunk<Records>() {
+          public Records run(int start, int end) {
+            Records chunk = new Records();
+            for (int i = start; i < end; i++) {
+              parseCsv(lines[i], chunk);
+            }
+            return chunk;
+          }
+        })) {
+          records.addAll(chunk);
+        }
+      }
+    }
+    return records;
+  }
 
-    System.out.println("\033[32m" + "House purchased" + "\033[0m");
+  private static void parseCsv(String line, Records records) {
+    if (line.isEmpty()) {
+      return;
+    }
+    List<String> fields = splitCsv(line);
+    try {
+      if (fields.get(0).equals("user") && fields.size() == 9) {
+        User user = new User(fields.get(1), fields.get(2), fields.get(3), fields.get(4), fields.get(5),
+            UserType.valueOf(fields.get(6)), Integer.parseInt(fields.get(7)));
+        user.setHasPurchasedHouse(Boolean.parseBoolean(fields.get(8)));
+        records.users.add(user);
+        return;
+      }
+      if (fields.get(0).equals("house") && (fields.size() == 11 || fields.size() == 13)) {
+        int id = fields.get(1).isEmpty() ? -1 : Integer.parseInt(fields.get(1));
+        House house = new House(id, Integer.parseInt(fields.get(4)), Float.parseFloat(fields.get(5)), fields.get(6),
+            Integer.parseInt(fields.get(7)), Boolean.parseBoolean(fields.get(8)), Boolean.parseBoolean(fields.get(10)),
+            Integer.parseInt(fields.get(9)), null);
+        if (fields.size() == 13) {
+          house.setLocation(Float.parseFloat(fields.get(11)), Float.parseFloat(fields.get(12)));
+        }
+        if ((fields.get(1).isEmpty() || id >= 0)
+            && (!house.hasLocation() || House.isValidLocation(house.getLatitude(), house.getLongitude()))) {
+          records.addHouse(house, fields.get(2), fields.get(3));
+          return;
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      // Counted as invalid below.
+    }
+    records.invalid++;
   }
 
-  // OPTIONS <name> <last name>
-  private void options(String[] arguments) {
-    User user = this.storage.getUser(arguments[1], arguments[2]);
+  // Splits a CSV line. A field in double quotes may hold commas, and two
+  // double quotes in it stand for one.
+  private static List<String> splitCsv(String line) {
+    List<String> fields = new ArrayList<String>(12);
+    if (line.indexOf('"') < 0) {
+      int start = 0;
+      for (int end = line.indexOf(','); end >= 0; end = line.indexOf(',', start)) {
+        fields.add(line.substring(start, end));
+        start = end + 1;
+      }
+      fields.add(line.substring(start));
+      return fields;
+    }
 
-    if (user == null) {
-      System.out.println("\033[31m" + "User not found!" + "\033[0m");
-      return;
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c != '"') {
+          field.append(c);
+        } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else {
+          quoted = false;
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
     }
+    fields.add(field.toString());
+    return fields;
+  }
 
-    if (user.getUserType() != UserType.CUSTOMER) {
-      System.out.println("\033[31m" + "This user is not a customer" + "\033[0m");
-      return;
+  // A binary export is a header followed by a snapshot record per user, each
+  // preceded by true, and false at the end.
+  private static Records readBinary(File file) throws IOException {
+    Records records = new Records();
+    try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+      int version = stream.readInt() == MAGIC ? stream.readInt() : -1;
+      if (version < 1 || version > VERSION) {
+        throw new IOException("Not a binary export: " + file);
+      }
+      while (stream.readBoolean()) {
+        int first = records.houses.size();
+        User user = Snapshot.readUser(stream, records.houses, version);
+        records.users.add(user);
+        String[] owner = new String[] { user.getName(), user.getLastName() };
+        for (int i = first; i < records.houses.size(); i++) {
+          records.owners.add(owner);
+        }
+      }
+    }
+    return records;
+  }
+
+  // Writes every user but the admins, with their houses, and returns the
+  // number of users written.
+  public static int export(Storage storage, File file, boolean binary) throws IOException {
+    int count = 0;
+    try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+      if (binary) {
+        stream.writeInt(MAGIC);
+        stream.writeInt(VERSION);
+      }
+
+      long cursor = 0;
+      CommandTrace.enter(Phase.LOOKUP);
+      for (List<User> page = storage.getUsersAfter(cursor, PAGE); !page.isEmpty();
+          page = storage.getUsersAfter(cursor, PAGE)) {
+        CommandTrace.enter(Phase.WRITE);
+        cursor = page.get(page.size() - 1).getSerial();
+        for (User user : page) {
+          if (user.getUserType() == UserType.ADMIN) {
+            continue;
+          }
+          count++;
+          if (binary) {
+            stream.writeBoolean(true);
+            Snapshot.writeUser(stream, storage, user);
+          }
+        }
+        if (!binary) {
+          writeCsv(storage, page, stream);
+        }
+        CommandTrace.enter(Phase.LOOKUP);
+      }
+
+      if (binary) {
+        stream.writeBoolean(false);
+      }
     }
+    return count;
+  }
 
-    System.out.println("\033[32m" + "Available Houses to Buy:" + "\033[0m");
-    for (User seller : storage.getUsers()) {
-      if (seller.getUserType() == UserType.SELLER && seller.getHouses() != null) {
-        for (House house : seller.getHouses()) {
-          if (house.isPurchased() == false && house.getPrice() <= user.getSalary()) {
-            System.out.println("\033[32m" + "  " + house.toString() + "\033[0m");
+  // The page is formatted in parallel chunks that are written in order.
+  private static void writeCsv(final Storage storage, final List<User> page, OutputStream stream) throws IOException {
+    CommandTrace.enter(Phase.FORMAT);
+    List<StringBuilder> chunks = ParallelScan.map(page.size(), new ParallelScan.Chunk<StringBuilder>() {
+      public StringBuilder run(int start, int end) {
+        StringBuilder text = new StringBuilder(128 * (end - start));
+        for (int i = start; i < end; i++) {
+          User user = page.get(i);
+          if (user.getUserType() != UserType.ADMIN) {
+            appendCsv(text, storage, user);
           }
         }
+        return text;
       }
+    });
+    CommandTrace.enter(Phase.WRITE);
+    for (StringBuilder text : chunks) {
+      stream.write(text.toString().getBytes(StandardCharsets.UTF_8));
     }
   }
 
-  private void report() {
-    System.out.println("\033[32m" + "Report:" + "\033[0m");
-    for (User user : storage.getUsers()) {
-      System.out.println("\033[32m" + "  " + user.toString() + "\033[0m");
-      String userType = user.getUserType() == UserType.CUSTOMER ? "Customer" : "Seller";
-      System.out.println("\033[32m" + "    " + userType + "\033[0m");
+  private static void appendCsv(StringBuilder text, Storage storage, User user) {
+    text.append("user,");
+    CommandDispatcher.appendCsv(text, user.getName()).append(',');
+    CommandDispatcher.appendCsv(text, user.getLastName()).append(',');
+    CommandDispatcher.appendCsv(text, user.getNationalID()).append(',');
+    CommandDispatcher.appendCsv(text, user.getPhoneNumber()).append(',');
+    CommandDispatcher.appendCsv(text, user.getAddress()).append(',');
+    text.append(user.getUserType()).append(',').append(user.getSalary()).append(',')
+        .append(user.hasPurchasedHouse()).append('\n');
 
-      if (user.getUserType() == UserType.ADMIN) {
-        continue;
+    for (House house : storage.getHousesOf(user)) {
+      text.append("house,").append(house.getId()).append(',');
+      CommandDispatcher.appendCsv(text, user.getName()).append(',');
+      CommandDispatcher.appendCsv(text, user.getLastName()).append(',');
+      text.append(house.getPrice()).append(',').append(house.getArea()).append(',');
+      CommandDispatcher.appendCsv(text, house.getAddress()).append(',');
+      text.append(house.getNumberOfRooms()).append(',').append(house.hasParking()).append(',')
+          .append(house.getYearOfConstruction()).append(',').append(house.isPurchased());
+      if (house.hasLocation()) {
+        text.append(',').append(house.getLatitude()).append(',').append(house.getLongitude());
       }
+      text.append('\n');
+    }
+  }
+}
 
-      // print houses if there are any
-      if (user.getHouses() != null) {
-        System.out.println("\033[32m" + "    Houses:" + "\033[0m");
-        for (House house : user.getHouses()) {
-          System.out.println("\033[32m" + "      " + house.toString() + "\033[0m");
+// Persistence keeps a Storage durable in a data directory holding the latest
+// snapshot and the journal of the commands applied since. A new snapshot is
+// taken every SNAPSHOT_INTERVAL journaled commands and when the program exits,
+// which keeps the journal, and with it the recovery time, short.
+class Persistence implements Closeable {
+  private static final int SNAPSHOT_INTERVAL = 100_000;
+
+  private Storage storage;
+  private File snapshotFile;
+  private File journalFile;
+  private Journal journal;
+  private AtomicInteger sinceSnapshot = new AtomicInteger();
+
+  // Mutations share this lock while they run, a snapshot takes it exclusively
+  // so that it never sees a command that is applied but not yet journaled.
+  private ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+  // A new house takes the next ID and a new user the next serial, which orders
+  // the user listings and their cursors, and replay gives both out again in
+  // journal order. So add_house and add_user commands hold this lock from
+  // taking the ID or serial to journaling the command, and the orders agree.
+  private ReentrantLock sequences = new ReentrantLock();
+
+  private Persistence(Storage storage, File directory) {
+    this.storage = storage;
+    this.snapshotFile = new File(directory, "snapshot.bin");
+    this.journalFile = new File(directory, "journal.log");
+  }
+
+  // Restores the storage from the directory and returns the persistence that
+  // keeps it durable from now on. The storage is left as it is when the
+  // directory has no data yet, or when it is restored already, like a
+  // MappedStorage that was closed cleanly. The snapshot is then brought up to
+  // the storage, so a later crash recovers from it.
+  public static Persistence open(Storage storage, File directory, boolean restored) throws IOException {
+    Files.createDirectories(directory.toPath());
+    Persistence persistence = new Persistence(storage, directory);
+
+    long sequence = 0;
+    if (persistence.snapshotFile.exists()) {
+      sequence = restored ? Snapshot.readSequence(persistence.snapshotFile)
+          : Snapshot.read(storage, persistence.snapshotFile);
+    }
+
+    // Replayed commands must not be journaled again and their output is not needed.
+    CommandDispatcher replayer = restored ? null
+        : new CommandDispatcher(storage, new Output(OutputStream.nullOutputStream(), false));
+    long lastSequence = Journal.replay(persistence.journalFile, sequence, replayer);
+
+    persistence.sinceSnapshot.set((int) (lastSequence - sequence));
+    persistence.journal = new Journal(persistence.journalFile, lastSequence + 1);
+    if (restored && (lastSequence > sequence || !persistence.snapshotFile.exists())) {
+      persistence.checkpoint();
+    }
+    return persistence;
+  }
+
+  public void beginMutation(Command command) {
+    snapshotLock.readLock().lock();
+    if (takesSequence(command)) {
+      sequences.lock();
+    }
+  }
+
+  public void endMutation(Command command) {
+    if (takesSequence(command)) {
+      sequences.unlock();
+    }
+    snapshotLock.readLock().unlock();
+  }
+
+  private static boolean takesSequence(Command command) {
+    return command.getCommandType() == CommandType.ADD_HOUSE || command.getCommandType() == CommandType.ADD_USER;
+  }
+
+  // Journals a command that has been applied to the storage.
+  public void record(Command command) throws IOException {
+    journal.append(command.getCommand());
+    sinceSnapshot.incrementAndGet();
+  }
+
+  // Must be called outside of beginMutation and endMutation.
+  public void snapshotIfDue() throws IOException {
+    if (sinceSnapshot.get() >= SNAPSHOT_INTERVAL) {
+      snapshot(SNAPSHOT_INTERVAL);
+    }
+  }
+
+  // An import is not journaled, so no mutation may be applied, and journaled,
+  // from the start of the import until the snapshot after it is taken. The
+  // import runs between beginImport and endImport and calls checkpoint last.
+  public void beginImport() {
+    snapshotLock.writeLock().lock();
+  }
+
+  public void endImport() {
+    snapshotLock.writeLock().unlock();
+  }
+
+  // Takes a snapshot now, after a change that is not journaled like an import.
+  // Must be called outside of beginMutation and endMutation.
+  public void checkpoint() throws IOException {
+    snapshot(0);
+  }
+
+  // Takes a snapshot if at least "due" commands were journaled since the last one.
+  private void snapshot(int due) throws IOException {
+    snapshotLock.writeLock().lock();
+    try {
+      if (sinceSnapshot.get() < due) {
+        return;
+      }
+      journal.sync();
+      Snapshot.write(storage, snapshotFile, journal.getLastSequence());
+      journal.truncate();
+      sinceSnapshot.set(0);
+    } finally {
+      snapshotLock.writeLock().unlock();
+    }
+  }
+
+  public void close() throws IOException {
+    snapshot(1);
+    journal.close();
+  }
+}
+
+/* --------------------------------- Server --------------------------------- */
+
+// Server serves the command line protocol over TCP. Every connection is handled
+// on its own thread with its own dispatcher, all of them sharing one Storage.
+// Each command is one line and its response ends with an empty line.
+class Server {
+  private Storage storage;
+  private Persistence persistence;
+  private CommandMetrics metrics;
+  private SlowCommandLog slowLog;
+  private ChangeLog changes;
+  private SavedSearches searches;
+  private MarketStats market;
+
+  public Server(Storage storage, Persistence persistence) {
+    this.storage = storage;
+    this.persistence = persistence;
+  }
+
+  // Connections record their commands in the metrics, when there are any.
+  public void setMetrics(CommandMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  // Connections log their slow commands to it, when there is one.
+  public void setSlowLog(SlowCommandLog slowLog) {
+    this.slowLog = slowLog;
+  }
+
+  // All connections append their changes to it and can subscribe to them.
+  public void setChangeLog(ChangeLog changes) {
+    this.changes = changes;
+  }
+
+  // Searches kept on one connection see the changes made on every other one.
+  public void setSavedSearches(SavedSearches searches) {
+    this.searches = searches;
+  }
+
+  // Changes made on any connection keep its totals up to date.
+  public void setMarketStats(MarketStats market) {
+    this.market = market;
+  }
+
+  public void serve(int port) throws IOException {
+    ExecutorService executor = newExecutor();
+    try (ServerSocket server = new ServerSocket(port)) {
+      System.out.println("Listening on port " + server.getLocalPort());
+      while (true) {
+        final Socket socket = server.accept();
+        executor.execute(new Runnable() {
+          public void run() {
+            handle(socket);
+          }
+        });
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  // Virtual threads when the runtime has them (Java 21+), a cached pool of
+  // platform threads otherwise.
+  private static ExecutorService newExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  private void handle(Socket socket) {
+    try (Socket connection = socket;
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+      Output out = new Output(connection.getOutputStream(), false);
+      CommandDispatcher dispatcher = new CommandDispatcher(storage, out);
+      dispatcher.setPersistence(persistence);
+      dispatcher.setMetrics(metrics);
+      dispatcher.setSlowLog(slowLog);
+      dispatcher.setChangeLog(changes);
+      dispatcher.setSavedSearches(searches);
+      dispatcher.setMarketStats(market);
+
+      String command;
+      while ((command = reader.readLine()) != null && !command.equals("exit")) {
+        // A malformed command only fails itself, not the whole connection.
+        try {
+          dispatcher.dispatch(command);
+        } catch (RuntimeException e) {
+          out.error("Invalid command: " + e);
         }
+        out.println("");
+        out.flush();
       }
+    } catch (IOException e) {
+      // The client went away, nothing left to answer.
     }
   }
 }
+
 /* -------------------------- Start of the program -------------------------- */
 
+// Usage: java Application [--batch [file]] [--data <directory>] [--server <port>]
+//                         [--storage <heap|columnar|mapped|sharded>] [--shards <n>]
+//                         [--parallelism <threads>] [--parallel-threshold <rows>]
+//                         [--cache <entries>] [--no-stats] [--stats-file <file>]
+//                         [--stats-interval <seconds>] [--slow-log <file>]
+//                         [--slow-threshold <milliseconds>] [--events <capacity>]
+//
+// Without arguments the program runs interactively. With "--batch" commands are
+// read from the file, or from the standard input when no file is given, without
+// prompts or colors, and the output is flushed once at the end. "--data" keeps
+// the data in the directory, so it survives restarts. "--server" serves many
+// clients at once over TCP instead of reading the standard input.
+// "--storage columnar" keeps houses in the column oriented ColumnarStorage and
+// "--storage mapped" in the memory mapped MappedStorage, whose files are kept
+// in the "--data" directory next to the journal and snapshots, and
+// "--storage sharded" splits them by address over "--shards" heap storages (16
+// by default).
+// "--parallelism" sets the threads that scans without an index run on, 1 keeps
+// them sequential, and "--parallel-threshold" the size below which they are not
+// split. "--cache" sets how many results of searches, options and queries are
+// kept, 0 turns the cache off. Command metrics are kept unless "--no-stats" is
+// given, "--stats-file" appends them to the file every "--stats-interval"
+// seconds (60 by default) and on exit. "--slow-log" writes the commands that
+// took at least "--slow-threshold" milliseconds (100 by default) to the file.
+// "--events" sets how many of the latest change events the subscribe command
+// can still return (65536 by default), 0 turns them off.
 public class Application {
-  public static void main(String[] args) {
-    Storage storage = new Storage();
-    CommandDispatcher dispatcher = new CommandDispatcher(storage);
+  public static Storage createStorage(String kind, File directory, int shards) throws IOException {
+    switch (kind) {
+      case "columnar":
+        return new ColumnarStorage();
+      case "mapped":
+        return new MappedStorage(directory);
+      case "sharded":
+        return new ShardedStorage(shards);
+      default:
+        return new Storage();
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    boolean batch = false;
+    String inputFile = null;
+    String dataDirectory = null;
+    int port = -1;
+    String storageKind = "heap";
+    int shards = 16;
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    int parallelThreshold = 16384;
+    int cacheEntries = 1024;
+    boolean stats = true;
+    String statsFile = null;
+    int statsInterval = 60;
+    String slowLogFile = null;
+    long slowThreshold = 100;
+    int events = 65536;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--batch")) {
+        batch = true;
+        if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+          inputFile = args[++i];
+        }
+      } else if (args[i].equals("--data") && i + 1 < args.length) {
+        dataDirectory = args[++i];
+      } else if (args[i].equals("--server") && i + 1 < args.length) {
+        port = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--storage") && i + 1 < args.length) {
+        storageKind = args[++i];
+      } else if (args[i].equals("--shards") && i + 1 < args.length) {
+        shards = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--parallelism") && i + 1 < args.length) {
+        parallelism = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--parallel-threshold") && i + 1 < args.length) {
+        parallelThreshold = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--cache") && i + 1 < args.length) {
+        cacheEntries = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--no-stats")) {
+        stats = false;
+      } else if (args[i].equals("--stats-file") && i + 1 < args.length) {
+        statsFile = args[++i];
+      } else if (args[i].equals("--stats-interval") && i + 1 < args.length) {
+        statsInterval = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--slow-log") && i + 1 < args.length) {
+        slowLogFile = args[++i];
+      } else if (args[i].equals("--slow-threshold") && i + 1 < args.length) {
+        slowThreshold = Long.parseLong(args[++i]);
+      } else if (args[i].equals("--events") && i + 1 < args.length) {
+        events = Integer.parseInt(args[++i]);
+      }
+    }
+
+    ParallelScan.configure(parallelism, parallelThreshold);
+
+    Output out = new Output(new FileOutputStream(FileDescriptor.out), !batch);
+    boolean mapped = storageKind.equals("mapped");
+    if (mapped && dataDirectory == null) {
+      System.err.println("The mapped storage needs a --data directory.");
+      return;
+    }
+    final Storage storage = createStorage(storageKind, mapped ? new File(dataDirectory) : null, shards);
+    if (cacheEntries > 0) {
+      storage.setCache(new QueryCache(cacheEntries));
+    }
+    CommandDispatcher dispatcher = new CommandDispatcher(storage, out);
+    CommandMetrics metrics = stats ? new CommandMetrics() : null;
+    dispatcher.setMetrics(metrics);
+    if (metrics != null && statsFile != null) {
+      metrics.dumpEvery(new File(statsFile), statsInterval * 1000L);
+    }
+    final SlowCommandLog slowLog = slowLogFile == null ? null : new SlowCommandLog(new File(slowLogFile), slowThreshold);
+    dispatcher.setSlowLog(slowLog);
+    ChangeLog changes = events > 0 ? new ChangeLog(events) : null;
+    dispatcher.setChangeLog(changes);
+    SavedSearches searches = new SavedSearches();
+    dispatcher.setSavedSearches(searches);
 
-    User ROOT = new User("ROOT", "ROOT", "1", "1", "Address", UserType.ADMIN);
-    storage.addUser(ROOT);
+    // A mapped storage already holds the ROOT user after its first run.
+    if (storage.getUser("ROOT", "ROOT") == null) {
+      User ROOT = new User("ROOT", "ROOT", "1", "1", "Address", UserType.ADMIN);
+      storage.addUser(ROOT);
+    }
+
+    // The latest snapshot and the journal after it are loaded before any command
+    // runs, unless a mapped storage was closed cleanly and holds the data already.
+    Persistence persistence = null;
+    if (dataDirectory != null) {
+      persistence = Persistence.open(storage, new File(dataDirectory),
+          mapped && ((MappedStorage) storage).isRestored());
+      dispatcher.setPersistence(persistence);
+    }
+    MarketStats market = MarketStats.of(storage);
+    dispatcher.setMarketStats(market);
+
+    if (port >= 0) {
+      final Persistence serverPersistence = persistence;
+      final File finalStats = metrics != null && statsFile != null ? new File(statsFile) : null;
+      if (serverPersistence != null || storage instanceof Closeable || slowLog != null || finalStats != null) {
+        // The server runs until it is stopped, the data is made durable and the
+        // last stats are written on the way out.
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+          public void run() {
+            if (finalStats != null) {
+              try {
+                metrics.dump(finalStats);
+              } catch (IOException e) {
+                System.err.println("Could not write the stats: " + e.getMessage());
+              }
+            }
+            try {
+              if (serverPersistence != null) {
+                serverPersistence.close();
+              }
+              if (storage instanceof Closeable) {
+                ((Closeable) storage).close();
+              }
+              if (slowLog != null) {
+                slowLog.close();
+              }
+            } catch (IOException e) {
+              System.err.println("Could not close the storage: " + e.getMessage());
+            }
+          }
+        }));
+      }
+      Server server = new Server(storage, persistence);
+      server.setMetrics(metrics);
+      server.setSlowLog(slowLog);
+      server.setChangeLog(changes);
+      server.setSavedSearches(searches);
+      server.setMarketStats(market);
+      server.serve(port);
+      return;
+    }
 
-    try (Scanner scanner = new Scanner(System.in)) {
-      System.out.println("Welcome to the real estate system!");
-      System.out.println("Type 'help' for a list of commands.");
+    InputStream input = inputFile == null ? System.in : new FileInputStream(inputFile);
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), 1 << 20)) {
+      if (!batch) {
+        out.println("Welcome to the real estate system!");
+        out.println("Type 'help' for a list of commands.");
+      }
 
       while (true) {
-        System.out.print("Enter command: ");
-        String command = scanner.nextLine();
+        if (!batch) {
+          out.print("Enter command: ");
+          out.flush();
+        }
+        String command = reader.readLine();
 
-        if (command.equals("exit")) {
+        if (command == null || command.equals("exit")) {
           break;
         } else {
-          Command commandObject = new Command(command);
-          dispatcher.dispatch(commandObject);
+          dispatcher.dispatch(command);
         }
       }
+
+      if (!batch) {
+        out.println("Goodbye!");
+      }
+    } finally {
+      // Whatever was produced before a failure still reaches the output.
+      out.flush();
+      if (metrics != null && statsFile != null) {
+        metrics.dump(new File(statsFile));
+      }
+      if (persistence != null) {
+        persistence.close();
+      }
+      if (storage instanceof Closeable) {
+        ((Closeable) storage).close();
+      }
+      if (slowLog != null) {
+        slowLog.close();
+      }
     }
-    System.out.println("Goodbye!");
   }
 }
 
@@ -0,0 +1,227 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+// Workloads builds a synthetic population and the storage and dispatcher
+// operations measured over it. It lives in the default package next to the
+// classes it drives, which JMH benchmarks can not, so benchmarks.HotPaths
+// loads it by name and only sees the operations as IntFunctions.
+public class Workloads {
+  private static final int CITIES = 50;
+
+  // Operations by name, each taking the number of the invocation and
+  // returning its result for the Blackhole. Mutations run as cycles that
+  // leave the population as they found it. A cache of 0 entries turns the
+  // query cache off.
+  public static Map<String, IntFunction<Object>> create(int size, String storageKind, int shards, int cache)
+      throws IOException {
+    File directory = storageKind.equals("mapped") ? Files.createTempDirectory("bench").toFile() : null;
+    final Storage storage = Application.createStorage(storageKind, directory, shards);
+    if (cache > 0) {
+      storage.setCache(new QueryCache(cache));
+    }
+    final CommandDispatcher dispatcher = new CommandDispatcher(storage,
+        new Output(OutputStream.nullOutputStream(), false));
+    final CommandDispatcher metered = new CommandDispatcher(storage,
+        new Output(OutputStream.nullOutputStream(), false));
+    metered.setMetrics(new CommandMetrics());
+    storage.addUser(new User("ROOT", "ROOT", "1", "1", "Address", UserType.ADMIN));
+
+    // One in ten users is a seller, the houses are spread over the sellers.
+    // They are added in bulk, as an import would.
+    final int sellers = Math.max(1, size / 10);
+    final int customers = size - sellers;
+    final User[] sellerList = new User[sellers];
+    List<User> users = new ArrayList<User>(size);
+    for (int i = 0; i < sellers; i++) {
+      sellerList[i] = new User("Seller" + i, "Last" + i, "S" + i, "P" + i, "City" + (i % CITIES), UserType.SELLER);
+      users.add(sellerList[i]);
+    }
+    for (int i = 0; i < customers; i++) {
+      users.add(new User("Customer" + i, "Last" + i, "C" + i, "Q" + i, "City" + (i % CITIES), UserType.CUSTOMER,
+          100_000 + (i % 1000) * 10_000));
+    }
+
+    // Every city lies on its own point, its houses within about 20 km of it.
+    // The locations come from their own generator so the other values stay
+    // what they were.
+    Random random = new Random(42);
+    Random places = new Random(7);
+    final float[][] cities = new float[CITIES][];
+    for (int i = 0; i < CITIES; i++) {
+      cities[i] = new float[] { 26 + places.nextFloat() * 12, 45 + places.nextFloat() * 15 };
+    }
+    final int[] houseIds = new int[size];
+    List<House> houses = new ArrayList<House>(size);
+    for (int i = 0; i < size; i++) {
+      User owner = sellerList[i % sellers];
+      int city = random.nextInt(CITIES);
+      House house = new House(100_000 + random.nextInt(10_000_000), 40 + random.nextInt(300),
+          "City" + city, 1 + random.nextInt(6), random.nextBoolean(), 1950 + random.nextInt(76),
+          owner);
+      house.setLocation(cities[city][0] + (places.nextFloat() - 0.5f) * 0.4f,
+          cities[city][1] + (places.nextFloat() - 0.5f) * 0.4f);
+      houses.add(house);
+      houseIds[i] = house.getId();
+    }
+    storage.addAll(users, houses);
+
+    final Command[] options = new Command[1024];
+    final Command[] searchHouses = new Command[1024];
+    final Command[] searchUsers = new Command[1024];
+    final String[] lines = new String[1024];
+    final HouseQuery[] queries = new HouseQuery[1024];
+    for (int i = 0; i < 1024; i++) {
+      int customer = random.nextInt(customers);
+      options[i] = new Command("options Customer" + customer + " Last" + customer + " 20");
+      searchHouses[i] = new Command("search_house ROOT id " + houseIds[random.nextInt(size)]);
+      searchUsers[i] = new Command("search_user ROOT ID C" + customer);
+      lines[i] = "add_house ROOT Seller" + i + " Last" + i + " 250000 120 \"City " + i + "\" 3 true 2001";
+      int low = 100_000 + (i % 1000) * 10_000;
+      queries[i] = HouseQuery.parse(new String[] { "price>=" + low, "AND", "price<=" + (low + 100_000), "AND",
+          "rooms>=3", "ORDER", "BY", "area", "DESC", "LIMIT", "10" }, 0);
+    }
+    final Command listUsers = new Command("list_users");
+    final Command report = new Command("report");
+
+    Map<String, IntFunction<Object>> operations = new LinkedHashMap<String, IntFunction<Object>>();
+
+    // Parsing.
+    operations.put("command.parse", new IntFunction<Object>() {
+      public Object apply(int i) {
+        return new Command(lines[i & 1023]);
+      }
+    });
+
+    // Storage lookups.
+    operations.put("storage.getUser", new IntFunction<Object>() {
+      public Object apply(int i) {
+        int customer = i % customers;
+        return storage.getUser("Customer" + customer, "Last" + customer);
+      }
+    });
+    final String[][] userSearches = { { "ID", "C" }, { "name", "Customer" }, { "last", "Last" },
+        { "phone", "Q" }, { "address", "City" }, { "userType", null } };
+    for (final String[] search : userSearches) {
+      operations.put("storage.searchUser." + search[0], new IntFunction<Object>() {
+        public Object apply(int i) {
+          String value = search[1] == null ? (i % 2 == 0 ? "SELLER" : "CUSTOMER")
+              : search[1] + (i % (search[0].equals("address") ? CITIES : customers));
+          return storage.searchUser(search[0], value);
+        }
+      });
+    }
+    final String[] houseSearches = { "id", "price", "area", "address", "rooms", "parking", "construction" };
+    for (final String key : houseSearches) {
+      operations.put("storage.searchHouse." + key, new IntFunction<Object>() {
+        public Object apply(int i) {
+          return storage.searchHouse(key, houseValue(key, i, houseIds));
+        }
+      });
+    }
+    operations.put("storage.searchHouse.priceRange", new IntFunction<Object>() {
+      public Object apply(int i) {
+        int low = 100_000 + (i % 1000) * 10_000;
+        return storage.searchHouse("price", low + ".." + (low + 10_000));
+      }
+    });
+    operations.put("storage.queryHouses.top10", new IntFunction<Object>() {
+      public Object apply(int i) {
+        return storage.queryHouses(queries[i & 1023]);
+      }
+    });
+    operations.put("storage.searchNear.1km", new IntFunction<Object>() {
+      public Object apply(int i) {
+        float[] city = cities[i % CITIES];
+        return storage.searchNear(city[0] + (i % 7) * 0.01, city[1] + (i % 11) * 0.01, 1, Integer.MAX_VALUE, null);
+      }
+    });
+    operations.put("storage.nearestHouses.10", new IntFunction<Object>() {
+      public Object apply(int i) {
+        float[] city = cities[i % CITIES];
+        return storage.nearestHouses(city[0] + (i % 7) * 0.01, city[1] + (i % 11) * 0.01, 10, null);
+      }
+    });
+    operations.put("storage.nearestHouses.10filtered", new IntFunction<Object>() {
+      public Object apply(int i) {
+        float[] city = cities[i % CITIES];
+        return storage.nearestHouses(city[0], city[1], 10, queries[i & 1023]);
+      }
+    });
+
+    // Dispatcher commands, their output goes to a null stream.
+    operations.put("dispatch.options", dispatch(dispatcher, options));
+    operations.put("dispatch.search_house", dispatch(dispatcher, searchHouses));
+    operations.put("dispatch.search_house.metrics", dispatch(metered, searchHouses));
+    operations.put("dispatch.search_user", dispatch(dispatcher, searchUsers));
+    operations.put("dispatch.list_users", dispatch(dispatcher, new Command[] { listUsers }));
+    operations.put("dispatch.report", dispatch(dispatcher, new Command[] { report }));
+    operations.put("dispatch.add_house+remove_house", new IntFunction<Object>() {
+      public Object apply(int i) {
+        int seller = i % sellers;
+        int id = Variables.HOUSE_ID.get();
+        dispatcher.dispatch(new Command("add_house ROOT Seller" + seller + " Last" + seller
+            + " 250000 120 City1 3 true 2001"));
+        dispatcher.dispatch(new Command("remove_house ROOT Seller" + seller + " Last" + seller + " " + id));
+        return null;
+      }
+    });
+    operations.put("dispatch.add_user+remove_user", new IntFunction<Object>() {
+      public Object apply(int i) {
+        dispatcher.dispatch(new Command("add_user ROOT CUSTOMER Bench" + i + " User X" + i + " Y" + i + " City1 1000"));
+        dispatcher.dispatch(new Command("remove_user ROOT Bench" + i + " User"));
+        return null;
+      }
+    });
+    operations.put("dispatch.purchase", new IntFunction<Object>() {
+      public Object apply(int i) {
+        int seller = i % sellers;
+        // Salaries repeat every 1000 customers, the last of them can afford every house.
+        int customer = ((i / 1000) * 1000 + 999) % customers;
+        int id = Variables.HOUSE_ID.get();
+        dispatcher.dispatch(new Command("add_house ROOT Seller" + seller + " Last" + seller
+            + " 100000 120 City1 3 true 2001"));
+        dispatcher.dispatch(new Command("purchase ROOT Seller" + seller + " Last" + seller + " " + id
+            + " Customer" + customer + " Last" + customer));
+        dispatcher.dispatch(new Command("remove_house ROOT Customer" + customer + " Last" + customer + " " + id));
+        return null;
+      }
+    });
+    return operations;
+  }
+
+  private static IntFunction<Object> dispatch(final CommandDispatcher dispatcher, final Command[] commands) {
+    return new IntFunction<Object>() {
+      public Object apply(int i) {
+        dispatcher.dispatch(commands[i % commands.length]);
+        return null;
+      }
+    };
+  }
+
+  private static String houseValue(String key, int i, int[] houseIds) {
+    switch (key) {
+      case "id":
+        return String.valueOf(houseIds[i % houseIds.length]);
+      case "price":
+        return String.valueOf(100_000 + (i % 10_000_000));
+      case "area":
+        return String.valueOf(40 + (i % 300));
+      case "address":
+        return "City" + (i % CITIES);
+      case "rooms":
+        return String.valueOf(1 + (i % 6));
+      case "parking":
+        return String.valueOf(i % 2 == 0);
+      default:
+        return String.valueOf(1950 + (i % 76));
+    }
+  }
+}
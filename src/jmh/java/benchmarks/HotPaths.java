@@ -0,0 +1,75 @@
+package benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// HotPaths measures the throughput of every storage search key and dispatcher
+// command over synthetic populations of 10k to 1M users and houses. Run it
+// with "-prof gc" for the allocation rate as well.
+//
+// JMH does not accept benchmarks in the default package the application is
+// in, so the operations are built by the Workloads class there and loaded by
+// name once per trial.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HotPaths {
+  @Param({ "10000", "100000", "1000000" })
+  public int size;
+
+  @Param({ "command.parse", "storage.getUser", "storage.searchUser.ID", "storage.searchUser.name",
+      "storage.searchUser.last", "storage.searchUser.phone", "storage.searchUser.address",
+      "storage.searchUser.userType", "storage.searchHouse.id", "storage.searchHouse.price",
+      "storage.searchHouse.area", "storage.searchHouse.address", "storage.searchHouse.rooms",
+      "storage.searchHouse.parking", "storage.searchHouse.construction", "storage.searchHouse.priceRange",
+      "storage.queryHouses.top10", "storage.searchNear.1km", "storage.nearestHouses.10",
+      "storage.nearestHouses.10filtered", "dispatch.options", "dispatch.search_house",
+      "dispatch.search_house.metrics", "dispatch.search_user", "dispatch.list_users", "dispatch.report",
+      "dispatch.add_house+remove_house", "dispatch.add_user+remove_user", "dispatch.purchase" })
+  public String operation;
+
+  @Param({ "heap" })
+  public String storage;
+
+  @Param({ "16" })
+  public int shards;
+
+  @Param({ "0" })
+  public int cache;
+
+  private IntFunction<Object> work;
+  private int invocation;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setUp() throws Exception {
+    Map<String, IntFunction<Object>> operations = (Map<String, IntFunction<Object>>) Class.forName("Workloads")
+        .getMethod("create", int.class, String.class, int.class, int.class)
+        .invoke(null, size, storage, shards, cache);
+    work = operations.get(operation);
+    if (work == null) {
+      throw new IllegalArgumentException("Unknown operation: " + operation);
+    }
+  }
+
+  @Benchmark
+  public Object run() {
+    return work.apply(invocation++);
+  }
+}